@@ -1,28 +1,177 @@
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.*;
+import java.awt.image.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
 
 public class PortfolioAppOKXAnimated extends JFrame {
     // Data classes:
     static class User implements Serializable {
+        private static final long serialVersionUID = 2935923015441196837L;
         String username, password;
-        HashMap<String, Holding> portfolio = new HashMap<>();
-        java.util.List<Transaction> history = new ArrayList<>();
-        Stack<Transaction> undoStack = new Stack<>();
+        Holdings portfolio = new Holdings();
+        HistoryStore history = new HistoryStore();
+        // Derived from the applied history: rebuilt on load, kept current by every change.
+        transient CostBook costs = new CostBook(CostBook.DEFAULT);
+        // Last journal seq applied, whether the segment on disk is behind it, and whether
+        // a snapshot of it is still being written (it must not be evicted until then).
+        transient long seq;
+        transient volatile boolean dirty;
+        transient boolean saving;
+        // The firm-wide totals this account feeds; null for mirrors and migration copies.
+        transient Aggregate.Member aggregate;
         User(String u, String p) { username=u; password=p; }
+        // What the storage codec writes. Taken under the user's lock, encoded outside it.
+        static final class Snapshot {
+            final String username; final long seq; final int[] symbols, quantities; final HistoryStore.Snapshot history;
+            final CostBook.Method costing;
+            Snapshot(User u) {
+                username = u.username; seq = u.seq; costing = u.costs.method;
+                symbols = u.portfolio.symbols();
+                quantities = new int[symbols.length];
+                for(int i = 0; i < symbols.length; i++) quantities[i] = u.portfolio.get(symbols[i]);
+                history = u.history.snapshot();
+            }
+        }
+        Snapshot snapshot() { return new Snapshot(this); }
+        // Only reached when migrating an old portfolio_data.ser. Its portfolio is a map of
+        // Holding objects, its history an ArrayList, and its undo stack duplicates the
+        // history, so the stack is dropped.
+        @SuppressWarnings("unchecked")
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField f = in.readFields();
+            username = (String)f.get("username", null);
+            password = (String)f.get("password", null);
+            portfolio = new Holdings();
+            for(Holding h : ((HashMap<String, Holding>)f.get("portfolio", null)).values()) portfolio.add(Symbols.id(h.ticker), h.quantity);
+            history = new HistoryStore();
+            history.addAll((java.util.List<Transaction>)f.get("history", null));
+            costs = new CostBook(CostBook.DEFAULT).rebuild(history);
+        }
+        int held(String ticker) {
+            int sym = Symbols.find(ticker);
+            return sym < 0 ? 0 : portfolio.get(sym);
+        }
+        // Rules shared by the trade form and the importer; null when the trade is allowed.
+        String check(Transaction.Type type, String ticker, int qty, double price) { return check(type, ticker, qty, price, held(ticker)); }
+        private String check(Transaction.Type type, String ticker, int qty, double price, int held) {
+            if(qty <= 0) return "Quantity must be positive.";
+            if(!(price >= 0 && price < HistoryStore.MAX_PRICE)) return "Price out of range.";
+            if(type==Transaction.Type.SELL) {
+                if(held==0) return "You do not have any "+ticker;
+                if(qty > held) return "Not enough shares.";
+            }
+            return null;
+        }
+        // Caller has already validated sells against the holding. Discards anything undone.
+        void apply(Transaction tx) {
+            move(tx, tx.signedQty());
+            history.add(tx);
+            book(history.size() - 1);
+        }
+        // Checks and applies rows in order, appending the accepted ones to history in one
+        // step. Returns the rejection reason per row, null where the row was applied.
+        String[] applyBatch(java.util.List<Transaction> rows) {
+            String[] reasons = new String[rows.size()];
+            ArrayList<Transaction> accepted = new ArrayList<>(rows.size());
+            for(int i = 0; i < reasons.length; i++) {
+                Transaction tx = rows.get(i);
+                reasons[i] = check(tx.type, tx.ticker, tx.qty, tx.price);
+                if(reasons[i]!=null) continue;
+                move(tx, tx.signedQty());
+                accepted.add(tx);
+            }
+            int from = history.size();
+            history.addAll(accepted);
+            for(int i = from; i < history.size(); i++) book(i);
+            return reasons;
+        }
+        // Each leg is checked against the holdings left by the legs before it, so a basket
+        // may sell what it bought earlier on. Null when every leg passes.
+        String checkBasket(java.util.List<Transaction> legs) {
+            if(legs.isEmpty()) return "Basket is empty.";
+            HashMap<String, Integer> after = new HashMap<>();
+            for(int i = 0; i < legs.size(); i++) {
+                Transaction tx = legs.get(i);
+                int held = after.computeIfAbsent(tx.ticker, this::held);
+                String rejected = check(tx.type, tx.ticker, tx.qty, tx.price, held);
+                if(rejected != null) return "Leg " + (i+1) + " (" + tx.type + " " + tx.ticker + "): " + rejected;
+                after.put(tx.ticker, held + tx.signedQty());
+            }
+            return null;
+        }
+        // All legs or none, as one undo step. Null when applied, otherwise why not.
+        String applyBasket(java.util.List<Transaction> legs) {
+            String rejected = checkBasket(legs);
+            if(rejected != null) return rejected;
+            for(Transaction tx : legs) move(tx, tx.signedQty());
+            int from = history.size();
+            history.addBasket(legs);
+            for(int i = from; i < history.size(); i++) book(i);
+            return null;
+        }
+        // Undo/redo walk the history cursor and apply the inverse or the original move. A
+        // step is one trade or one whole basket; the *Entries forms count history entries.
+        java.util.List<Transaction> undo(int steps) { return undoEntries(history.undoSpan(steps)); }
+        java.util.List<Transaction> redo(int steps) { return redoEntries(history.redoSpan(steps)); }
+        java.util.List<Transaction> undoEntries(int steps) {
+            java.util.List<Transaction> undone = new ArrayList<>();
+            boolean past = false; // beyond the cost book's undo frames: rebuilt once at the end
+            while(steps-- > 0 && !history.isEmpty()) {
+                Transaction tx = history.undoLast();
+                int i = history.size();
+                past = past || !costs.undo(history.symbol(i), history.type(i), history.qty(i));
+                move(tx, -tx.signedQty());
+                undone.add(tx);
+            }
+            if(past) costs = new CostBook(costs.method).rebuild(history);
+            return undone;
+        }
+        java.util.List<Transaction> redoEntries(int steps) {
+            java.util.List<Transaction> redone = new ArrayList<>();
+            while(steps-- > 0 && history.canRedo()) {
+                Transaction tx = history.redoNext();
+                book(history.size() - 1);
+                move(tx, tx.signedQty());
+                redone.add(tx);
+            }
+            return redone;
+        }
+        // Switching method rebuilds the book from the history once.
+        void costing(CostBook.Method method) {
+            if(method != costs.method) costs = new CostBook(method).rebuild(history);
+        }
+        private void move(Transaction tx, int delta) {
+            int sym = Symbols.id(tx.ticker), before = aggregate == null ? 0 : portfolio.get(sym), after = portfolio.add(sym, delta);
+            if(aggregate != null) aggregate.moved(sym, before, after, delta == tx.signedQty() ? HistoryStore.fixed(tx.price) : -1, tx.millis());
+        }
+        private void book(int i) { costs.apply(history.symbol(i), history.type(i), history.qty(i), history.fixedPrice(i)); }
     }
+    // Only used to read old portfolio_data.ser files; live holdings are a Holdings table.
     static class Holding implements Serializable {
+        private static final long serialVersionUID = 4338168762600372788L;
         String ticker; int quantity;
         Holding(String t, int q) { ticker=t; quantity=q; }
         public String toString() { return ticker + ": " + quantity + " shares"; }
     }
     static class Transaction implements Serializable {
+        private static final long serialVersionUID = -2326418875186729178L;
         enum Type { BUY, SELL }
         Type type; String ticker; int qty; double price; ZonedDateTime date;
         static final ZoneId PAK_ZONE = ZoneId.of("Asia/Karachi");
@@ -32,13 +181,742 @@ public class PortfolioAppOKXAnimated extends JFrame {
             this.type = type; this.ticker = ticker; this.qty = qty; this.price = price;
             this.date = ZonedDateTime.now(PAK_ZONE);
         }
+        Transaction(Type type, String ticker, int qty, double price, ZonedDateTime date) {
+            this.type = type; this.ticker = ticker; this.qty = qty; this.price = price; this.date = date;
+        }
+        long millis() { return date.toInstant().toEpochMilli(); }
+        int signedQty() { return type==Type.BUY ? qty : -qty; }
         public String toString() {
             return String.format("%s %d×%s @ %.2f on %s", type, qty, ticker, price, date.format(FORMATTER));
         }
     }
-    private HashMap<String, User> users = new HashMap<>();
+    // Process-wide ticker dictionary: each distinct ticker gets a small int id once, and
+    // history columns and holdings store that id instead of the string.
+    static final class Symbols {
+        private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+        private static volatile String[] names = new String[64];
+        private static int count;
+        static int id(String ticker) {
+            Integer id = ids.get(ticker);
+            return id != null ? id : register(ticker);
+        }
+        // -1 for a ticker nothing has used yet.
+        static int find(String ticker) {
+            Integer id = ids.get(ticker);
+            return id != null ? id : -1;
+        }
+        static String name(int id) { return names[id]; }
+        // Every id handed out so far is below this.
+        static int bound() { return names.length; }
+        private static synchronized int register(String ticker) {
+            Integer id = ids.get(ticker);
+            if(id != null) return id;
+            String[] n = count == names.length ? Arrays.copyOf(names, count * 2) : names;
+            n[count] = ticker;
+            names = n;
+            ids.put(ticker, count);
+            return count++;
+        }
+    }
+    // Tradable universe from a local symbol master (-Dokx.symbols=FILE, default
+    // symbols.txt, empty for none): one SYMBOL[,name] line each, '#' for comments. The
+    // file is memory-mapped on first use and indexed as line offsets sorted by symbol, so
+    // a lookup is a binary search over the mapped bytes and allocates nothing. Without a
+    // file every ticker is accepted.
+    static final class SymbolMaster {
+        private static final String FILE = System.getProperty("okx.symbols", "symbols.txt");
+        private static final SymbolMaster NONE = new SymbolMaster(ByteBuffer.allocate(0), new int[0]);
+        private static volatile SymbolMaster loaded;
+        private final ByteBuffer map;
+        private final int[] lines; // start of each entry, in symbol order
+        private SymbolMaster(ByteBuffer map, int[] lines) { this.map = map; this.lines = lines; }
+
+        static SymbolMaster get() {
+            SymbolMaster m = loaded;
+            if(m != null) return m;
+            synchronized(SymbolMaster.class) {
+                if(loaded == null) loaded = load(FILE);
+                return loaded;
+            }
+        }
+        static SymbolMaster load(String file) {
+            File f = new File(file);
+            if(file.isEmpty() || !f.isFile()) return NONE;
+            try {
+                ByteBuffer map = BinaryStore.map(f);
+                int[] lines = new int[1024];
+                int n = 0, end = map.limit();
+                boolean sorted = true;
+                for(int p = 0; p < end; ) {
+                    int eol = p;
+                    while(eol < end && map.get(eol) != '\n') eol++;
+                    byte b = map.get(p);
+                    if(eol > p && b != '#' && b != '\r' && b != ',') {
+                        if(n == lines.length) lines = Arrays.copyOf(lines, n * 2);
+                        if(n > 0 && sorted && compareLines(map, lines[n-1], p) > 0) sorted = false;
+                        lines[n++] = p;
+                    }
+                    p = eol + 1;
+                }
+                lines = Arrays.copyOf(lines, n);
+                if(!sorted) {
+                    Integer[] order = new Integer[n];
+                    for(int i = 0; i < n; i++) order[i] = lines[i];
+                    Arrays.sort(order, (a, c) -> compareLines(map, a, c));
+                    for(int i = 0; i < n; i++) lines[i] = order[i];
+                }
+                return new SymbolMaster(map, lines);
+            } catch (IOException e) { e.printStackTrace(); return NONE; }
+        }
+        boolean isEmpty() { return lines.length == 0; }
+        int size() { return lines.length; }
+        // Buys are held to the universe when there is one.
+        boolean accepts(String ticker) { return isEmpty() || contains(ticker); }
+        boolean contains(CharSequence ticker) {
+            int i = lowerBound(ticker, false);
+            return i < lines.length && compare(lines[i], ticker, false) == 0;
+        }
+        // Entries whose symbol starts with prefix, in symbol order, into
+        // out; returns how many.
+        int complete(CharSequence prefix, int[] out) {
+            if(prefix.length() == 0) return 0;
+            int n = 0;
+            for(int i = lowerBound(prefix, true); i < lines.length && n < out.length && compare(lines[i], prefix, true) == 0; i++) out[n++] = i;
+            return n;
+        }
+        String symbol(int entry) { return text(lines[entry], false); }
+        String name(int entry) { return text(lines[entry], true); }
+
+        private int lowerBound(CharSequence key, boolean prefix) {
+            int lo = 0, hi = lines.length;
+            while(lo < hi) { int mid = (lo+hi) >>> 1; if(compare(lines[mid], key, prefix) < 0) lo = mid+1; else hi = mid; }
+            return lo;
+        }
+        private static boolean end(ByteBuffer map, int p) {
+            if(p >= map.limit()) return true;
+            byte b = map.get(p);
+            return b == ',' || b == '\n' || b == '\r';
+        }
+        // Symbol at p against key, ignoring ASCII case; with prefix, a symbol that starts with key compares equal.
+        private int compare(int p, CharSequence key, boolean prefix) {
+            for(int i = 0; i < key.length(); i++, p++) {
+                if(end(map, p)) return -1;
+                int d = upper(map.get(p)) - Character.toUpperCase(key.charAt(i));
+                if(d != 0) return d;
+            }
+            return prefix || end(map, p) ? 0 : 1;
+        }
+        private static int compareLines(ByteBuffer map, int a, int b) {
+            for(;; a++, b++) {
+                boolean ea = end(map, a), eb = end(map, b);
+                if(ea || eb) return ea == eb ? 0 : ea ? -1 : 1;
+                int d = upper(map.get(a)) - upper(map.get(b));
+                if(d != 0) return d;
+            }
+        }
+        private String text(int p, boolean name) {
+            int from = p;
+            while(!end(map, from)) from++;
+            if(!name) return ascii(p, from);
+            if(from >= map.limit() || map.get(from) != ',') return "";
+            int to = ++from;
+            while(to < map.limit() && map.get(to) != '\n' && map.get(to) != '\r') to++;
+            byte[] b = new byte[to - from];
+            for(int i = 0; i < b.length; i++) b[i] = map.get(from + i);
+            return new String(b, java.nio.charset.StandardCharsets.UTF_8).trim();
+        }
+        private String ascii(int from, int to) {
+            char[] c = new char[to - from];
+            for(int i = 0; i < c.length; i++) c[i] = (char)upper(map.get(from + i));
+            return new String(c);
+        }
+        private static int upper(byte b) { return b >= 'a' && b <= 'z' ? b - 32 : b & 0xff; }
+    }
+    // Share count per symbol id in an open-addressing table; a symbol that drops to
+    // zero is removed, so size() is the number of distinct holdings.
+    static final class Holdings {
+        private int[] keys = new int[16], vals = new int[16]; // key is id+1, 0 marks a free slot
+        private int size;
+        int size() { return size; }
+        int get(int sym) {
+            int i = slot(sym);
+            return keys[i] == 0 ? 0 : vals[i];
+        }
+        // Applies delta and returns the new count; nothing is stored for a count <= 0.
+        int add(int sym, int delta) {
+            int i = slot(sym);
+            if(keys[i] == 0) {
+                if(delta <= 0) return 0;
+                keys[i] = sym + 1; vals[i] = delta;
+                if(++size * 2 > keys.length) rehash(keys.length * 2);
+                return delta;
+            }
+            int q = vals[i] + delta;
+            if(q > 0) return vals[i] = q;
+            delete(i);
+            return 0;
+        }
+        int[] symbols() {
+            int[] out = new int[size];
+            for(int i = 0, k = 0; i < keys.length; i++) if(keys[i] != 0) out[k++] = keys[i] - 1;
+            return out;
+        }
+        private static int hash(int sym) { int h = sym * 0x9E3779B9; return h ^ (h >>> 16); }
+        private int slot(int sym) {
+            int mask = keys.length - 1, i = hash(sym) & mask;
+            while(keys[i] != 0 && keys[i] != sym + 1) i = (i + 1) & mask;
+            return i;
+        }
+        // Backward-shift delete keeps every probe chain unbroken without tombstones.
+        private void delete(int i) {
+            int mask = keys.length - 1;
+            for(int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = hash(keys[j] - 1) & mask;
+                if(((j - home) & mask) >= ((j - i) & mask)) { keys[i] = keys[j]; vals[i] = vals[j]; i = j; }
+            }
+            keys[i] = 0; vals[i] = 0;
+            size--;
+        }
+        private void rehash(int capacity) {
+            int[] k = keys, v = vals;
+            keys = new int[capacity]; vals = new int[capacity];
+            for(int i = 0; i < k.length; i++) if(k[i] != 0) { int s = slot(k[i] - 1); keys[s] = k[i]; vals[s] = v[i]; }
+        }
+    }
+    // Cost basis and realized P&L per symbol under FIFO, LIFO or average cost, updated
+    // as each trade is applied. Every change pushes the values it overwrites (and the lots
+    // a sell used up) onto a stack, so undo restores them exactly instead of subtracting.
+    // The stack keeps the frames of the latest UNDO_DEPTH to 2 * UNDO_DEPTH applies
+    // (-Dokx.costs.undo, default 4096); an undo past them returns false and the caller
+    // rebuilds from the history, which reaches back as far as the history does.
+    static final class CostBook {
+        static final int UNDO_DEPTH = Math.max(1, Integer.getInteger("okx.costs.undo", 4096));
+        enum Method { FIFO, LIFO, AVERAGE }
+        // -Dokx.costing=fifo|lifo|average picks the method accounts start with.
+        static final Method DEFAULT = method(System.getProperty("okx.costing"));
+        static Method method(String name) {
+            for(Method m : Method.values()) if(m.name().equalsIgnoreCase(name)) return m;
+            return Method.FIFO;
+        }
+        // Open lots of one symbol in buy order: FIFO sells take from the head, LIFO from the tail.
+        static final class Lots {
+            int[] qty = new int[4]; long[] price = new long[4]; int head, tail;
+            int end(Method m) { return m == Method.FIFO ? head : tail - 1; }
+            void push(int q, long p) {
+                if(tail == qty.length) resize(0);
+                qty[tail] = q; price[tail] = p; tail++;
+            }
+            void pushFront(int q, long p) {
+                if(head == 0) resize(Math.max(4, tail));
+                head--; qty[head] = q; price[head] = p;
+            }
+            void remove(Method m) { if(m == Method.FIFO) head++; else tail--; }
+            // Moves the open lots so there are `front` free slots before them and room after.
+            private void resize(int front) {
+                int n = tail - head, cap = Math.max(qty.length, (n + front + 1) * 2);
+                int[] q = new int[cap]; long[] p = new long[cap];
+                System.arraycopy(qty, head, q, front, n); System.arraycopy(price, head, p, front, n);
+                qty = q; price = p; head = front; tail = front + n;
+            }
+        }
+        final Method method;
+        private double[] cost = new double[16], realized = new double[16];
+        private int[] open = new int[16];
+        private Lots[] lots = new Lots[16];
+        private long[] undo = new long[64];
+        private int depth;
+        private int[] frames = new int[16]; // where each kept apply's values start in undo
+        private int kept;
+        CostBook(Method method) { this.method = method; }
+
+        int open(int sym) { return sym < open.length ? open[sym] : 0; }
+        double cost(int sym) { return sym < cost.length ? cost[sym] : 0; }
+        double realized(int sym) { return sym < realized.length ? realized[sym] : 0; }
+        // Summed over every symbol ever traded, held or not.
+        double realized() {
+            double r = 0;
+            for(double x : realized) r += x;
+            return r;
+        }
+
+        void apply(int sym, Transaction.Type type, int qty, long fixedPrice) {
+            ensure(sym);
+            frame();
+            double px = fixedPrice / (double)HistoryStore.PRICE_SCALE;
+            push(Double.doubleToRawLongBits(cost[sym]));
+            if(type == Transaction.Type.BUY) {
+                cost[sym] += qty * px;
+                open[sym] += qty;
+                if(method != Method.AVERAGE) lots(sym).push(qty, fixedPrice);
+                return;
+            }
+            push(Double.doubleToRawLongBits(realized[sym]));
+            push(open[sym]);
+            // A sell beyond the open lots (only possible in old, inconsistent data) has no basis.
+            int take = Math.min(qty, open[sym]);
+            double removed = 0;
+            if(method == Method.AVERAGE) removed = take == open[sym] ? cost[sym] : cost[sym] * take / open[sym];
+            else {
+                Lots l = lots(sym);
+                int full = 0, partial = 0;
+                for(int left = take; left > 0; ) {
+                    int i = l.end(method), q = Math.min(left, l.qty[i]);
+                    removed += q * (l.price[i] / (double)HistoryStore.PRICE_SCALE);
+                    left -= q;
+                    if(q < l.qty[i]) { l.qty[i] -= q; partial = q; }
+                    else { push(q); push(l.price[i]); l.remove(method); full++; }
+                }
+                push(partial);
+                push(full);
+            }
+            open[sym] -= take;
+            cost[sym] = open[sym] == 0 ? 0 : cost[sym] - removed;
+            realized[sym] += qty * px - removed;
+        }
+        // Reverses the last apply(), which must have been for this symbol, type and qty.
+        // False, changing nothing, if that apply's frame was already dropped.
+        boolean undo(int sym, Transaction.Type type, int qty) {
+            if(kept == 0) return false;
+            kept--;
+            if(type == Transaction.Type.BUY) {
+                open[sym] -= qty;
+                if(method != Method.AVERAGE) lots[sym].tail--;
+            } else {
+                if(method != Method.AVERAGE) {
+                    Lots l = lots[sym];
+                    int full = (int)pop(), partial = (int)pop();
+                    if(partial > 0) l.qty[l.end(method)] += partial;
+                    for(; full > 0; full--) {
+                        long p = pop(); int q = (int)pop();
+                        if(method == Method.FIFO) l.pushFront(q, p); else l.push(q, p);
+                    }
+                }
+                open[sym] = (int)pop();
+                realized[sym] = Double.longBitsToDouble(pop());
+            }
+            cost[sym] = Double.longBitsToDouble(pop());
+            return true;
+        }
+        // Replays the applied part of a history; used on load and when the method changes.
+        CostBook rebuild(HistoryStore h) {
+            for(int i = 0; i < h.size(); i++) apply(h.symbol(i), h.type(i), h.qty(i), h.fixedPrice(i));
+            return this;
+        }
+        private Lots lots(int sym) {
+            if(lots[sym] == null) lots[sym] = new Lots();
+            return lots[sym];
+        }
+        private void ensure(int sym) {
+            if(sym < open.length) return;
+            int n = Math.max(sym + 1, open.length * 2);
+            cost = Arrays.copyOf(cost, n); realized = Arrays.copyOf(realized, n);
+            open = Arrays.copyOf(open, n); lots = Arrays.copyOf(lots, n);
+        }
+        // Starts an apply's frame, first dropping the oldest UNDO_DEPTH frames when full.
+        private void frame() {
+            if(kept == 2 * UNDO_DEPTH) {
+                int from = frames[UNDO_DEPTH];
+                System.arraycopy(undo, from, undo, 0, depth - from);
+                depth -= from;
+                for(int i = 0; i < UNDO_DEPTH; i++) frames[i] = frames[i + UNDO_DEPTH] - from;
+                kept = UNDO_DEPTH;
+            }
+            if(kept == frames.length) frames = Arrays.copyOf(frames, kept * 2);
+            frames[kept++] = depth;
+        }
+        private void push(long v) {
+            if(depth == undo.length) undo = Arrays.copyOf(undo, depth * 2);
+            undo[depth++] = v;
+        }
+        private long pop() { return undo[--depth]; }
+    }
+    // Transaction log with an undo cursor: entries before it are applied and are what
+    // the list shows; entries after it were undone and can be redone until the next
+    // trade. Entries live in parallel primitive columns (prices in fixed point) and
+    // get() builds a Transaction only for the row asked for. Applied entries are indexed
+    // by date and per symbol, positions sorted by time, so appends, undo and redo are
+    // O(1) and a range query costs O(log n) plus the rows it returns.
+    static class HistoryStore extends AbstractList<Transaction> {
+        static final long PRICE_SCALE = 100_000_000L;
+        static final double MAX_PRICE = Long.MAX_VALUE / (double)PRICE_SCALE;
+        private static final Transaction.Type[] TYPES = Transaction.Type.values();
+        // Flag in the type column: this entry went in with the one before it as a basket.
+        static final byte JOINED = 0x40;
+        static long fixed(double price) { return Math.round(price * PRICE_SCALE); }
+        // Positions into the columns, kept in time order.
+        class TimeIndex {
+            int[] pos = new int[8]; int size;
+            long millis(int k) { return times[pos[k]]; }
+            private void grow() { if(size==pos.length) pos = Arrays.copyOf(pos, size*2); }
+            void append(int p) { grow(); pos[size++] = p; }
+            // add and remove return the slot that changed.
+            int add(int p) {
+                grow();
+                int at = size;
+                while(at > 0 && millis(at-1) > times[p]) at--;
+                System.arraycopy(pos, at, pos, at+1, size-at);
+                pos[at] = p; size++;
+                return at;
+            }
+            int remove(int p) {
+                int at = size - 1;
+                while(at >= 0 && pos[at] != p) at--;
+                System.arraycopy(pos, at+1, pos, at, size-at-1);
+                size--;
+                return at;
+            }
+            // Stable sort by time, for rebuilds after entries arrived out of order.
+            void sort() {
+                boolean sorted = true;
+                for(int i = 1; i < size && sorted; i++) sorted = millis(i-1) <= millis(i);
+                if(sorted) return;
+                Integer[] order = new Integer[size];
+                for(int i = 0; i < size; i++) order[i] = pos[i];
+                Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+                for(int i = 0; i < size; i++) pos[i] = order[i];
+            }
+            // Merges another time-sorted index in; existing entries win ties.
+            void merge(TimeIndex o) {
+                int n = size + o.size;
+                int[] p = new int[Math.max(8, n)];
+                for(int i = 0, j = 0, k = 0; k < n; k++)
+                    p[k] = j >= o.size || (i < size && millis(i) <= o.millis(j)) ? pos[i++] : o.pos[j++];
+                pos = p; size = n;
+            }
+            // First slot whose time is >= t.
+            int lowerBound(long t) {
+                int lo = 0, hi = size;
+                while(lo < hi) { int mid = (lo+hi) >>> 1; if(millis(mid) < t) lo = mid+1; else hi = mid; }
+                return lo;
+            }
+        }
+        private byte[] types = new byte[16];
+        private int[] syms = new int[16], qtys = new int[16];
+        private long[] prices = new long[16], times = new long[16];
+        private int length, cursor;
+        private int shared; // slots below this are seen by a snapshot; overwriting one copies first
+        private final TimeIndex byDate = new TimeIndex();
+        private TimeIndex[] bySymbol = new TimeIndex[16];
+        // Holdings after every CHECKPOINT entries in date order, as (symbol, qty) pairs, so
+        // an as-of query replays at most CHECKPOINT entries. Built on first use; a change
+        // at date slot j drops the checkpoints after it.
+        static final int CHECKPOINT = Math.max(1, Integer.getInteger("okx.history.checkpoint", 1024));
+        private int[][] checkpoints = new int[8][];
+        private int checkpointed;
+        // Columns as of one moment. Appends never touch slots a snapshot can see, so it
+        // shares the arrays; only a trade that overwrites the undone tail copies them.
+        static final class Snapshot {
+            final byte[] types; final int[] syms, qtys; final long[] prices, times; final int length, cursor;
+            Snapshot(HistoryStore h) {
+                types = h.types; syms = h.syms; qtys = h.qtys; prices = h.prices; times = h.times;
+                length = h.length; cursor = h.cursor;
+            }
+        }
+        Snapshot snapshot() {
+            shared = Math.max(shared, length);
+            return new Snapshot(this);
+        }
+
+        public Transaction get(int i) {
+            if(i >= cursor) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + cursor);
+            return entry(i);
+        }
+        public int size() { return cursor; }
+        // Column reads for scans and the storage codec; i may reach into the undone tail.
+        int length() { return length; }
+        Transaction.Type type(int i) { return TYPES[types[i] & ~JOINED]; }
+        boolean joined(int i) { return (types[i] & JOINED) != 0; }
+        int symbol(int i) { return syms[i]; }
+        int qty(int i) { return qtys[i]; }
+        int signedQty(int i) { return type(i) == Transaction.Type.BUY ? qtys[i] : -qtys[i]; }
+        long fixedPrice(int i) { return prices[i]; }
+        long millis(int i) { return times[i]; }
+
+        public void add(int i, Transaction tx) {
+            if(i != cursor) throw new UnsupportedOperationException("history is append-only");
+            length = cursor;
+            put(tx);
+            index(cursor++);
+        }
+        // Bulk append: indexed incrementally when the batch is in time order after
+        // everything already held, otherwise sorted on its own and merged in.
+        public boolean addAll(Collection<? extends Transaction> txs) {
+            if(txs.isEmpty()) return false;
+            length = cursor;
+            ensure(length + txs.size());
+            long prev = byDate.size==0 ? Long.MIN_VALUE : byDate.millis(byDate.size-1);
+            boolean ordered = true;
+            for(Transaction tx : txs) {
+                put(tx);
+                if(times[length-1] < prev) ordered = false;
+                prev = times[length-1];
+            }
+            if(ordered) while(cursor < length) index(cursor++);
+            else {
+                long earliest = Long.MAX_VALUE;
+                for(int i = cursor; i < length; i++) earliest = Math.min(earliest, times[i]);
+                dated(byDate.lowerBound(earliest));
+                TimeIndex dates = new TimeIndex();
+                HashMap<Integer, TimeIndex> symbols = new HashMap<>();
+                for(; cursor < length; cursor++) {
+                    dates.append(cursor);
+                    symbols.computeIfAbsent(syms[cursor], k -> new TimeIndex()).append(cursor);
+                }
+                dates.sort();
+                byDate.merge(dates);
+                for(Map.Entry<Integer, TimeIndex> e : symbols.entrySet()) {
+                    e.getValue().sort();
+                    symbolIndex(e.getKey()).merge(e.getValue());
+                }
+            }
+            modCount++;
+            return true;
+        }
+        // Appended like addAll, then every entry but the first is marked JOINED.
+        void addBasket(Collection<? extends Transaction> txs) {
+            int from = cursor;
+            addAll(txs);
+            for(int i = from + 1; i < length; i++) types[i] |= JOINED;
+        }
+        public void clear() { length = cursor = 0; reindex(); modCount++; }
+        boolean canRedo() { return cursor < length; }
+        int redoable() { return length - cursor; }
+        // Entries that undoing or redoing this many steps moves, a basket being one step.
+        int undoSpan(int steps) {
+            int i = cursor;
+            for(; steps > 0 && i > 0; steps--) { i--; while(i > 0 && joined(i)) i--; }
+            return cursor - i;
+        }
+        // Entries from applied entry i to the cursor, widened back to the first leg if i is
+        // inside a basket; 0 if i is not applied.
+        int undoSpanFrom(int i) {
+            if(i < 0 || i >= cursor) return 0;
+            while(i > 0 && joined(i)) i--;
+            return cursor - i;
+        }
+        int redoSpan(int steps) {
+            int i = cursor;
+            for(; steps > 0 && i < length; steps--) { i++; while(i < length && joined(i)) i++; }
+            return i - cursor;
+        }
+        Transaction undoLast() {
+            int p = --cursor;
+            dated(byDate.remove(p));
+            bySymbol[syms[p]].remove(p);
+            modCount++;
+            return entry(p);
+        }
+        Transaction redoNext() {
+            Transaction tx = entry(cursor);
+            index(cursor++);
+            return tx;
+        }
+        // Takes over columns decoded by the storage codec; symbols are dictionary ids.
+        void load(byte[] types, int[] syms, int[] qtys, long[] prices, long[] times, int length, int cursor) {
+            this.types = types; this.syms = syms; this.qtys = qtys; this.prices = prices; this.times = times;
+            this.length = length; this.cursor = cursor; shared = 0;
+            ensure(16);
+            reindex();
+            modCount++;
+        }
+        private Transaction entry(int i) {
+            return new Transaction(type(i), Symbols.name(syms[i]), qtys[i], prices[i] / (double)PRICE_SCALE,
+                Instant.ofEpochMilli(times[i]).atZone(Transaction.PAK_ZONE));
+        }
+        private void put(Transaction tx) {
+            if(length < shared) { copyColumns(types.length); shared = 0; }
+            ensure(length + 1);
+            types[length] = (byte)tx.type.ordinal(); syms[length] = Symbols.id(tx.ticker); qtys[length] = tx.qty;
+            prices[length] = fixed(tx.price); times[length] = tx.millis();
+            length++;
+        }
+        private void ensure(int n) {
+            if(n > types.length) copyColumns(Math.max(n, types.length * 2));
+        }
+        private void copyColumns(int c) {
+            types = Arrays.copyOf(types, c); syms = Arrays.copyOf(syms, c); qtys = Arrays.copyOf(qtys, c);
+            prices = Arrays.copyOf(prices, c); times = Arrays.copyOf(times, c);
+        }
+        private TimeIndex symbolIndex(int sym) {
+            if(sym >= bySymbol.length) bySymbol = Arrays.copyOf(bySymbol, Math.max(sym + 1, bySymbol.length * 2));
+            if(bySymbol[sym] == null) bySymbol[sym] = new TimeIndex();
+            return bySymbol[sym];
+        }
+        private void index(int i) {
+            dated(byDate.add(i));
+            symbolIndex(syms[i]).add(i);
+            modCount++;
+        }
+        private void reindex() {
+            byDate.size = 0;
+            checkpointed = 0;
+            Arrays.fill(bySymbol, null);
+            for(int i = 0; i < cursor; i++) {
+                byDate.append(i);
+                symbolIndex(syms[i]).append(i);
+            }
+            byDate.sort();
+            for(TimeIndex ti : bySymbol) if(ti != null) ti.sort();
+        }
+
+        private void dated(int slot) { checkpointed = Math.min(checkpointed, slot / CHECKPOINT); }
+        // Holdings after every applied entry dated at or before t, by ticker. Starts from
+        // the nearest checkpoint, so the cost does not grow with the history.
+        TreeMap<String, Integer> holdingsAt(long t) {
+            int n = t == Long.MAX_VALUE ? byDate.size : byDate.lowerBound(t + 1), k = n / CHECKPOINT;
+            HashMap<Integer, Integer> held = checkpoint(k);
+            for(int slot = k * CHECKPOINT; slot < n; slot++) move(held, byDate.pos[slot]);
+            TreeMap<String, Integer> out = new TreeMap<>();
+            for(Map.Entry<Integer, Integer> e : held.entrySet()) if(e.getValue() > 0) out.put(Symbols.name(e.getKey()), e.getValue());
+            return out;
+        }
+        // Holdings after the first k * CHECKPOINT entries by date, building checkpoints up to k.
+        private HashMap<Integer, Integer> checkpoint(int k) {
+            HashMap<Integer, Integer> held = new HashMap<>();
+            int from = Math.min(k, checkpointed);
+            if(from > 0) { int[] c = checkpoints[from - 1]; for(int i = 0; i < c.length; i += 2) held.put(c[i], c[i + 1]); }
+            for(int j = from; j < k; j++) {
+                for(int slot = j * CHECKPOINT; slot < (j + 1) * CHECKPOINT; slot++) move(held, byDate.pos[slot]);
+                int[] c = new int[held.size() * 2];
+                int i = 0;
+                for(Map.Entry<Integer, Integer> e : held.entrySet()) { c[i++] = e.getKey(); c[i++] = e.getValue(); }
+                if(j == checkpoints.length) checkpoints = Arrays.copyOf(checkpoints, j * 2);
+                checkpoints[j] = c;
+            }
+            checkpointed = Math.max(checkpointed, k);
+            return held;
+        }
+        // Out-of-order dates can take a running count below zero, so zero (not <= 0) is dropped.
+        private void move(HashMap<Integer, Integer> held, int p) {
+            held.merge(syms[p], signedQty(p), (a, b) -> a + b == 0 ? null : a + b);
+        }
+        // Portfolio value (sym < 0, each holding marked at its latest trade price) or one
+        // symbol's share count after each applied entry, in date order.
+        Series series(int sym) {
+            TimeIndex ti = sym < 0 ? byDate : sym < bySymbol.length && bySymbol[sym] != null ? bySymbol[sym] : new TimeIndex();
+            long[] t = new long[ti.size];
+            double[] v = new double[ti.size];
+            int[] held = new int[sym < 0 ? Symbols.bound() : 0];
+            double[] last = new double[held.length];
+            double value = 0;
+            for(int k = 0; k < ti.size; k++) {
+                int p = ti.pos[k], q = signedQty(p);
+                if(sym < 0) {
+                    int s = syms[p];
+                    double px = prices[p] / (double)PRICE_SCALE;
+                    value += (held[s] + q) * px - held[s] * last[s];
+                    held[s] += q; last[s] = px;
+                } else value += q;
+                t[k] = times[p]; v[k] = value;
+            }
+            return new Series(t, v);
+        }
+        // Changes whenever the applied entries do.
+        int version() { return modCount; }
+        // Fixed-point price of the latest applied entry for sym by time, -1 if there is none.
+        long lastPrice(int sym) {
+            TimeIndex ti = sym >= 0 && sym < bySymbol.length ? bySymbol[sym] : null;
+            return ti == null || ti.size == 0 ? -1 : prices[ti.pos[ti.size - 1]];
+        }
+        Set<String> tickers() {
+            TreeSet<String> out = new TreeSet<>();
+            for(int s = 0; s < bySymbol.length; s++) if(bySymbol[s] != null && bySymbol[s].size > 0) out.add(Symbols.name(s));
+            return out;
+        }
+        // Entries in [from, to) by date, optionally for one ticker (null = all).
+        java.util.List<Transaction> query(String ticker, long from, long to) {
+            int sym = ticker == null ? -1 : Symbols.find(ticker);
+            TimeIndex ti = ticker == null ? byDate : sym >= 0 && sym < bySymbol.length ? bySymbol[sym] : null;
+            if(ti == null) return Collections.emptyList();
+            int lo = ti.lowerBound(from), hi = ti.lowerBound(to);
+            return new AbstractList<Transaction>() {
+                public Transaction get(int i) { return entry(ti.pos[lo + i]); }
+                public int size() { return Math.max(0, hi - lo); }
+            };
+        }
+    }
+
+    // A time series in date order. downsample() keeps the first, lowest, highest and
+    // last point of each pixel column, so spikes survive however many points share one.
+    static final class Series {
+        final long[] times; final double[] values;
+        Series(long[] times, double[] values) { this.times = times; this.values = values; }
+        int size() { return times.length; }
+        // At most four points per column over [from, to], plus the neighbours just outside
+        // so the line runs to the edges.
+        Series downsample(long from, long to, int columns) {
+            int lo = Math.max(0, lowerBound(from) - 1), hi = Math.min(size(), lowerBound(to + 1) + 1);
+            if(hi - lo <= columns * 4) return new Series(Arrays.copyOfRange(times, lo, hi), Arrays.copyOfRange(values, lo, hi));
+            long[] t = new long[columns * 4 + 2]; double[] v = new double[t.length];
+            int n = 0;
+            double span = Math.max(1, to - from);
+            for(int i = lo; i < hi; ) {
+                // The column's right edge as a time, so the scan below only compares longs.
+                double col = Math.floor((times[i] - from) / span * columns);
+                long edge = from + (long)Math.ceil((col + 1) * span / columns);
+                int j = i + 1, minAt = i, maxAt = i;
+                for(; j < hi && times[j] < edge; j++) {
+                    if(values[j] < values[minAt]) minAt = j;
+                    if(values[j] > values[maxAt]) maxAt = j;
+                }
+                int[] keep = {i, Math.min(minAt, maxAt), Math.max(minAt, maxAt), j - 1};
+                for(int k = 0; k < 4; k++) if(k == 0 || keep[k] != keep[k-1]) {
+                    if(n == t.length) { t = Arrays.copyOf(t, n * 2); v = Arrays.copyOf(v, n * 2); }
+                    t[n] = times[keep[k]]; v[n++] = values[keep[k]];
+                }
+                i = j;
+            }
+            return new Series(Arrays.copyOf(t, n), Arrays.copyOf(v, n));
+        }
+        // First index whose time is >= t.
+        int lowerBound(long t) {
+            int lo = 0, hi = size();
+            while(lo < hi) { int mid = (lo+hi) >>> 1; if(times[mid] < t) lo = mid+1; else hi = mid; }
+            return lo;
+        }
+        // Draws [from, to] as a step line into a w x h image with the range labelled;
+        // safe to call off the EDT.
+        static BufferedImage plot(Series s, long from, long to, int w, int h, boolean money, Color line, Color grid) {
+            BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = img.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            Series d = s.downsample(from, to, w);
+            double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE;
+            for(int i = 0; i < d.size(); i++) { lo = Math.min(lo, d.values[i]); hi = Math.max(hi, d.values[i]); }
+            if(d.size() == 0) { lo = 0; hi = 1; }
+            if(hi - lo < 1e-9) { lo -= 1; hi += 1; }
+            int top = 14, bottom = h - 24;
+            g.setColor(grid);
+            for(int k = 0; k <= 4; k++) { int y = top + (bottom - top) * k / 4; g.drawLine(0, y, w, y); }
+            double span = Math.max(1, to - from), range = hi - lo;
+            Path2D.Double path = new Path2D.Double();
+            for(int i = 0; i < d.size(); i++) {
+                double x = (d.times[i] - from) / span * w, y = bottom - (d.values[i] - lo) / range * (bottom - top);
+                if(i == 0) path.moveTo(x, y);
+                else { path.lineTo(x, path.getCurrentPoint().getY()); path.lineTo(x, y); }
+            }
+            if(d.size() > 0) path.lineTo(w, path.getCurrentPoint().getY());
+            g.setColor(line);
+            g.setStroke(new BasicStroke(2f));
+            g.draw(path);
+            g.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+            g.setColor(Color.LIGHT_GRAY);
+            String fmt = money ? "$%,.2f" : "%,.0f";
+            g.drawString(String.format(fmt, hi), 6, top + 12);
+            g.drawString(String.format(fmt, lo), 6, bottom - 4);
+            DateTimeFormatter day = DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm");
+            String left = Instant.ofEpochMilli(from).atZone(Transaction.PAK_ZONE).format(day);
+            String right = Instant.ofEpochMilli(to).atZone(Transaction.PAK_ZONE).format(day);
+            g.drawString(left, 6, h - 6);
+            g.drawString(right, w - 6 - g.getFontMetrics().stringWidth(right), h - 6);
+            g.dispose();
+            return img;
+        }
+    }
+
+    private final PortfolioService service = PortfolioService.open(new File("."));
     private User currentUser = null;
-    private final String DATA_FILE = "portfolio_data.ser";
     private final Font mainFont = new Font("Segoe UI", Font.PLAIN, 20);
     private final Font bigFont = new Font("Segoe UI", Font.BOLD, 28);
     private final Color bgColor = new Color(13,17,28);
@@ -58,8 +936,21 @@ public class PortfolioAppOKXAnimated extends JFrame {
     private TradePanel buyPanel = new TradePanel(true);
     private TradePanel sellPanel = new TradePanel(false);
     private HistoryPanel historyPanel = new HistoryPanel();
+    private ChartPanel chartPanel = new ChartPanel();
+    private RiskPanel riskPanel = new RiskPanel();
+    private FirmPanel firmPanel = new FirmPanel();
+    private BasketPanel basketPanel = new BasketPanel();
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        StartupTimer.mark("main");
+        if(args.length > 0 && args[0].equals("--stress")) { StressCheck.run(args); return; }
+        if(args.length > 0 && args[0].equals("--bench")) { Bench.run(args); return; }
+        if(args.length > 0 && args[0].equals("--server")) { PortfolioServer.run(args); return; }
+        if(args.length > 0 && args[0].equals("--loadgen")) { LoadGen.run(args); return; }
+        if(args.length > 1 && args[0].equals("--connect")) System.setProperty("okx.server", args[1]);
+        Metrics.start();
+        Metrics.watchEdt();
+        MarketData.startConfigured();
         UIManager.put("control", new Color(20,22,36));
         UIManager.put("text", Color.WHITE);
         UIManager.put("nimbusBase", new Color(23,25,34));
@@ -68,14 +959,28 @@ public class PortfolioAppOKXAnimated extends JFrame {
         SwingUtilities.invokeLater(() -> new PortfolioAppOKXAnimated().setVisible(true));
     }
 
+    // With -Dokx.startup.stats=true, prints each startup phase once, as ms since JVM start.
+    static final class StartupTimer {
+        static final boolean ON = Boolean.getBoolean("okx.startup.stats");
+        private static final Set<String> seen = ConcurrentHashMap.newKeySet();
+        static void mark(String phase) {
+            if(!ON || !seen.add(phase)) return;
+            System.out.printf("[startup] %-16s %6d ms%n", phase, java.lang.management.ManagementFactory.getRuntimeMXBean().getUptime());
+        }
+    }
+
     public PortfolioAppOKXAnimated() {
         super("OKX Portfolio");
-        setDefaultCloseOperation(EXIT_ON_CLOSE);
+        setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
         setSize(900, 640);
         setMinimumSize(new Dimension(700, 520));
         setLocationRelativeTo(null);
 
-        loadData();
+        // The window comes up straight away; accounts load behind it.
+        new Thread(() -> {
+            service.load();
+            SwingUtilities.invokeLater(() -> { loginPanel.loaded(); StartupTimer.mark("interactive"); });
+        }, "okx-load").start();
         setContentPane(new AnimatedBGPanel());
 
         cardPanel.setOpaque(false);
@@ -87,6 +992,10 @@ public class PortfolioAppOKXAnimated extends JFrame {
         cardPanel.add(buyPanel, "buy");
         cardPanel.add(sellPanel, "sell");
         cardPanel.add(historyPanel, "history");
+        cardPanel.add(chartPanel, "chart");
+        cardPanel.add(riskPanel, "risk");
+        cardPanel.add(firmPanel, "firm");
+        cardPanel.add(basketPanel, "basket");
         getContentPane().setLayout(null);
         getContentPane().add(cardPanel);
         cardPanel.setBounds(0,0,getWidth(),getHeight());
@@ -96,62 +1005,675 @@ public class PortfolioAppOKXAnimated extends JFrame {
             }
         });
         addWindowListener(new WindowAdapter() {
-            public void windowClosing(WindowEvent e) { saveData(); }
+            // The final save runs after the window is gone, so a large account can't hang it.
+            public void windowClosing(WindowEvent e) {
+                dispose();
+                new Thread(() -> { service.close(); System.exit(0); }, "okx-close").start();
+            }
         });
         cardLayout.show(cardPanel, "login");
     }
 
+    // Latency histograms for the hot paths, an EDT stall watchdog, JMX beans under
+    // okx:type=Latency and a periodic dump to a file. Recording is a few atomic adds, so
+    // it stays on. -Dokx.metrics.dump=FILE (default portfolio_metrics.log, empty for
+    // none), -Dokx.metrics.interval=SECONDS (default 60), -Dokx.edt.stall.ms=N (default 250).
+    static final class Metrics {
+        public interface LatencyMXBean {
+            long getCount();
+            double getMeanMillis();
+            double getP50Millis();
+            double getP99Millis();
+            double getP999Millis();
+            double getMaxMillis();
+        }
+        // Log-linear buckets, 16 per power of two (within about 6%), exact below 16 ns and
+        // topping out around nine minutes.
+        static final class Histogram implements LatencyMXBean {
+            private static final int SUB = 4, BUCKETS = (40 - SUB) << SUB;
+            final String name;
+            private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+            private final LongAdder count = new LongAdder(), total = new LongAdder();
+            private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+            Histogram(String name) { this.name = name; }
+            void record(long nanos) {
+                long v = Math.max(0, nanos);
+                counts.incrementAndGet(bucket(v));
+                count.increment(); total.add(v); max.accumulate(v);
+            }
+            void since(long startNanos) { record(System.nanoTime() - startNanos); }
+            private static int bucket(long v) {
+                int msb = 63 - Long.numberOfLeadingZeros(v);
+                if(msb < SUB) return (int)v;
+                return Math.min(BUCKETS - 1, ((msb - SUB + 1) << SUB) + (int)((v >>> (msb - SUB)) & ((1 << SUB) - 1)));
+            }
+            // Smallest value that lands in bucket i.
+            private static long floor(int i) {
+                if(i < 1 << SUB) return i;
+                int msb = (i >> SUB) + SUB - 1;
+                return ((long)((1 << SUB) + (i & ((1 << SUB) - 1)))) << (msb - SUB);
+            }
+            // Upper edge of the bucket holding the p-th fraction of values.
+            long percentile(double p) {
+                long[] c = new long[BUCKETS];
+                long n = 0;
+                for(int i = 0; i < BUCKETS; i++) n += c[i] = counts.get(i);
+                long rank = Math.max(1, (long)Math.ceil(p * n)), seen = 0;
+                for(int i = 0; i < BUCKETS; i++) if((seen += c[i]) >= rank) return Math.min(max.get(), i + 1 < BUCKETS ? floor(i + 1) - 1 : Long.MAX_VALUE);
+                return 0;
+            }
+            public long getCount() { return count.sum(); }
+            public double getMeanMillis() { long n = count.sum(); return n == 0 ? 0 : total.sum() / 1e6 / n; }
+            public double getP50Millis() { return percentile(0.50) / 1e6; }
+            public double getP99Millis() { return percentile(0.99) / 1e6; }
+            public double getP999Millis() { return percentile(0.999) / 1e6; }
+            public double getMaxMillis() { return max.get() / 1e6; }
+            public String toString() {
+                return String.format("%-18s n=%-9d mean=%.3f p50=%.3f p99=%.3f p99.9=%.3f max=%.3f ms",
+                    name, getCount(), getMeanMillis(), getP50Millis(), getP99Millis(), getP999Millis(), getMaxMillis());
+            }
+        }
+        private static final Map<String, Histogram> all = new ConcurrentSkipListMap<>();
+        static Histogram histogram(String name) { return all.computeIfAbsent(name, Histogram::new); }
+        static final Histogram TRADE = histogram("trade"), BASKET = histogram("basket"), UNDO = histogram("undo"), REDO = histogram("redo"),
+            SAVE = histogram("save"), LOAD = histogram("load"), LOAD_USER = histogram("load.user"),
+            REFRESH_PORTFOLIO = histogram("refresh.portfolio"), REFRESH_HISTORY = histogram("refresh.history"),
+            REFRESH_CHART = histogram("refresh.chart"), PAINT = histogram("paint.background"),
+            HTTP = histogram("http"), RISK = histogram("risk"), EDT_LAG = histogram("edt.lag"), EDT_STALL = histogram("edt.stall");
+        private static final String DUMP = System.getProperty("okx.metrics.dump", "portfolio_metrics.log");
+        private static volatile boolean started;
+
+        // Registers the JMX beans and schedules the dump; once per process.
+        static synchronized void start() {
+            if(started) return;
+            started = true;
+            javax.management.MBeanServer jmx = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            for(Histogram h : all.values()) {
+                try { jmx.registerMBean(h, new javax.management.ObjectName("okx:type=Latency,name=" + h.name)); }
+                catch (Exception e) { e.printStackTrace(); }
+            }
+            if(DUMP.isEmpty()) return;
+            long every = Math.max(1, Integer.getInteger("okx.metrics.interval", 60));
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "okx-metrics");
+                t.setDaemon(true);
+                return t;
+            });
+            dumper.scheduleAtFixedRate(Metrics::dump, every, every, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(Metrics::dump, "okx-metrics-final"));
+        }
+        private static long dumped = -1;
+        // Skipped when nothing was recorded since the last one.
+        static synchronized void dump() {
+            long n = 0;
+            for(Histogram h : all.values()) n += h.getCount();
+            if(n == dumped) return;
+            dumped = n;
+            StringBuilder sb = new StringBuilder("# ").append(Instant.now()).append('\n');
+            for(Histogram h : all.values()) if(h.getCount() > 0) sb.append(h).append('\n');
+            log(sb.toString());
+        }
+        static synchronized void log(String text) {
+            if(DUMP.isEmpty()) return;
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(DUMP, true), "UTF-8")) { w.write(text); }
+            catch (IOException e) { e.printStackTrace(); }
+        }
+
+        // Posts a heartbeat to the EDT every 100 ms (less for tight thresholds). One still
+        // waiting after the threshold gets the EDT's stack written to stderr and the dump,
+        // once per stall; every heartbeat's wait goes into edt.lag, stalls into edt.stall.
+        static void watchEdt() {
+            long threshold = Math.max(10, Long.getLong("okx.edt.stall.ms", 250)) * 1_000_000L, tick = Math.min(100_000_000L, threshold / 2);
+            AtomicReference<Thread> edt = new AtomicReference<>();
+            Thread t = new Thread(() -> {
+                try {
+                    while(true) {
+                        long sent = System.nanoTime();
+                        CountDownLatch beat = new CountDownLatch(1);
+                        EventQueue.invokeLater(() -> { edt.set(Thread.currentThread()); EDT_LAG.since(sent); beat.countDown(); });
+                        boolean reported = false;
+                        while(!beat.await(tick, TimeUnit.NANOSECONDS)) {
+                            long waited = System.nanoTime() - sent;
+                            Thread e = edt.get();
+                            if(reported || waited < threshold || e == null) continue;
+                            reported = true;
+                            StringBuilder sb = new StringBuilder("# ").append(Instant.now()).append(" EDT blocked for ").append(waited / 1_000_000).append(" ms\n");
+                            for(StackTraceElement f : e.getStackTrace()) sb.append("\tat ").append(f).append('\n');
+                            System.err.print(sb);
+                            log(sb.toString());
+                        }
+                        if(reported) EDT_STALL.since(sent);
+                        Thread.sleep(tick / 1_000_000);
+                    }
+                } catch (InterruptedException ignored) {}
+            }, "okx-edt-watchdog");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // Live prices. A Source (the file replayer, or anything else that calls publish())
+    // runs on its own thread and feeds a bounded lock-free ring; the okx-pricing thread
+    // drains it into a last-price table and moves each watched account's value by
+    // qty * (new - old) for the one symbol that ticked. The UI samples the values on a
+    // timer, so the tick rate never reaches the EDT. -Dokx.ticks=FILE replays
+    // millis,TICKER,price lines at -Dokx.ticks.speed times real time (0 = flat out).
+    static final class MarketData {
+        interface Source { void run(MarketData feed) throws Exception; }
+        // Tick files as written by a recorder: millis,TICKER,price, '#' for comments.
+        // Malformed lines are skipped and counted, like rejected import rows; the first
+        // few go to stderr.
+        static final class Replay implements Source {
+            static final int MAX_ERRORS = 10;
+            final File file; final double speed;
+            volatile long skipped;
+            Replay(File file, double speed) { this.file = file; this.speed = speed; }
+            public void run(MarketData feed) throws Exception {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 1 << 16)) {
+                    long first = Long.MIN_VALUE, wall = System.nanoTime(), n = 0;
+                    for(String line; (line = in.readLine()) != null; ) {
+                        n++;
+                        if(line.isEmpty() || line.startsWith("#")) continue;
+                        int a = line.indexOf(','), b = a < 0 ? -1 : line.indexOf(',', a + 1);
+                        long millis; String ticker; double price;
+                        try {
+                            if(b < 0) throw new IllegalArgumentException("expected millis,TICKER,price");
+                            millis = Long.parseLong(line.substring(0, a).trim());
+                            ticker = line.substring(a + 1, b).trim().toUpperCase();
+                            price = Double.parseDouble(line.substring(b + 1).trim());
+                            if(ticker.isEmpty()) throw new IllegalArgumentException("no ticker");
+                            if(!(price > 0) || Double.isInfinite(price)) throw new IllegalArgumentException("bad price");
+                        } catch (IllegalArgumentException e) {
+                            if(skipped++ < MAX_ERRORS) System.err.println(file.getName() + " line " + n + ": skipped (" + e.getMessage() + ")");
+                            continue;
+                        }
+                        if(speed > 0) {
+                            if(first == Long.MIN_VALUE) first = millis;
+                            long due = wall + (long)((millis - first) * 1_000_000L / speed) - System.nanoTime();
+                            if(due > 1_000_000) LockSupport.parkNanos(due);
+                        }
+                        feed.publish(ticker, price, millis);
+                    }
+                    if(skipped > 0) System.err.println(file.getName() + ": " + skipped + " malformed lines skipped");
+                }
+            }
+        }
+        interface Sink { void tick(int sym, long price, long millis); }
+        // Single producer (the source thread), single consumer (okx-pricing). Sequences only
+        // grow; the producer waits while the ring is full.
+        static final class Ring {
+            private final int mask;
+            private final int[] syms; private final long[] prices, times;
+            private final AtomicLong head = new AtomicLong(), tail = new AtomicLong(); // next to read, next to write
+            private long headSeen; // producer's last look at head
+            Ring(int capacity) {
+                int c = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+                mask = c - 1;
+                syms = new int[c]; prices = new long[c]; times = new long[c];
+            }
+            boolean offer(int sym, long price, long millis) {
+                long t = tail.get();
+                if(t - headSeen > mask && t - (headSeen = head.get()) > mask) return false;
+                int i = (int)t & mask;
+                syms[i] = sym; prices[i] = price; times[i] = millis;
+                tail.lazySet(t + 1);
+                return true;
+            }
+            int drain(Sink sink, int max) {
+                long h = head.get(), n = Math.min(max, tail.get() - h);
+                for(long k = h; k < h + n; k++) { int i = (int)k & mask; sink.tick(syms[i], prices[i], times[i]); }
+                head.lazySet(h + n);
+                return (int)n;
+            }
+            int size() { return (int)(tail.get() - head.get()); }
+        }
+        // One account's market value. A holding is marked at its live price once one has
+        // arrived and at its latest trade price until then. Ticks come from okx-pricing,
+        // holdings from whoever changed them; both under this object's lock.
+        static final class Valuation {
+            final User user;
+            private final MarketData feed;
+            private int[] qty = new int[16];
+            private long[] mark = new long[16];
+            private boolean[] watched = new boolean[16];
+            private double value;
+            private volatile long version;
+            Valuation(MarketData feed, User user) { this.feed = feed; this.user = user; }
+            synchronized void hold(int sym, int q, long tradeMark) {
+                if(sym >= qty.length) {
+                    int c = Math.max(sym + 1, qty.length * 2);
+                    qty = Arrays.copyOf(qty, c); mark = Arrays.copyOf(mark, c); watched = Arrays.copyOf(watched, c);
+                }
+                if(!watched[sym]) { watched[sym] = true; feed.watch(sym, this); }
+                long live = feed.price(sym), m = live > 0 ? live : Math.max(0, tradeMark);
+                value += ((double)q * m - (double)qty[sym] * mark[sym]) / HistoryStore.PRICE_SCALE;
+                qty[sym] = q; mark[sym] = m;
+                version++;
+            }
+            synchronized void tick(int sym, long price) {
+                if(qty[sym] != 0) value += (double)qty[sym] * (price - mark[sym]) / HistoryStore.PRICE_SCALE;
+                mark[sym] = price;
+                version++;
+            }
+            synchronized double value() { return value; }
+            // Bumped by every change; the UI repaints when it moves.
+            long version() { return version; }
+            void close() {
+                synchronized(this) { for(int sym = 0; sym < watched.length; sym++) if(watched[sym]) feed.unwatch(sym, this); }
+            }
+        }
+
+        private static volatile MarketData running;
+        private final Ring ring = new Ring(Integer.getInteger("okx.ticks.ring", 1 << 16));
+        private volatile AtomicLongArray last = new AtomicLongArray(64); // fixed-point, 0 = none yet
+        private volatile Valuation[][] watchers = new Valuation[64][];
+        private volatile long ticks;
+        private volatile boolean done;
+
+        static MarketData feed() { return running; }
+        // Starts the -Dokx.ticks replay, if one is configured.
+        static void startConfigured() {
+            String file = System.getProperty("okx.ticks", "");
+            if(!file.isEmpty()) start(new Replay(new File(file), Double.parseDouble(System.getProperty("okx.ticks.speed", "1"))));
+        }
+        static synchronized MarketData start(Source source) {
+            if(running != null) return running;
+            MarketData m = new MarketData();
+            Thread pricing = new Thread(m::price, "okx-pricing"), feed = new Thread(() -> {
+                try { source.run(m); }
+                catch (Exception e) { e.printStackTrace(); }
+                finally { m.done = true; }
+            }, "okx-tick-source");
+            pricing.setDaemon(true); feed.setDaemon(true);
+            pricing.start(); feed.start();
+            return running = m;
+        }
+        // Called by the source; waits while the ring is full.
+        void publish(String ticker, double price, long millis) {
+            int sym = Symbols.id(ticker);
+            long px = HistoryStore.fixed(price);
+            while(!ring.offer(sym, px, millis)) LockSupport.parkNanos(50_000);
+        }
+        long price(int sym) {
+            AtomicLongArray l = last;
+            return sym >= 0 && sym < l.length() ? l.get(sym) : 0;
+        }
+        long ticks() { return ticks; }
+        // Whether the source has finished and every tick it sent has been applied.
+        boolean drained() { return done && ring.size() == 0; }
+        Valuation watch(User u) {
+            Valuation v = new Valuation(this, u);
+            for(int sym : u.portfolio.symbols()) v.hold(sym, u.portfolio.get(sym), u.history.lastPrice(sym));
+            return v;
+        }
+        private synchronized void watch(int sym, Valuation v) {
+            Valuation[][] w = watchers;
+            if(sym >= w.length) w = Arrays.copyOf(w, Math.max(sym + 1, w.length * 2));
+            else w = w.clone();
+            Valuation[] on = w[sym] == null ? new Valuation[0] : w[sym];
+            on = Arrays.copyOf(on, on.length + 1);
+            on[on.length - 1] = v;
+            w[sym] = on;
+            watchers = w;
+        }
+        private synchronized void unwatch(int sym, Valuation v) {
+            Valuation[][] w = watchers.clone();
+            ArrayList<Valuation> on = new ArrayList<>(Arrays.asList(w[sym]));
+            on.remove(v);
+            w[sym] = on.toArray(new Valuation[0]);
+            watchers = w;
+        }
+        private void price() {
+            Sink apply = (sym, px, millis) -> {
+                AtomicLongArray l = last;
+                if(sym >= l.length()) {
+                    AtomicLongArray g = new AtomicLongArray(Math.max(sym + 1, l.length() * 2));
+                    for(int i = 0; i < l.length(); i++) g.set(i, l.get(i));
+                    last = l = g;
+                }
+                l.set(sym, px);
+                Valuation[][] w = watchers;
+                if(sym < w.length && w[sym] != null) for(Valuation v : w[sym]) v.tick(sym, px);
+            };
+            while(true) {
+                int n = ring.drain(apply, 4096);
+                if(n > 0) ticks += n;
+                else LockSupport.parkNanos(500_000);
+            }
+        }
+    }
+
+    // Risk on current holdings from daily closes in -Dokx.prices (default prices/), one
+    // TICKER.csv per ticker: date,close lines, or any CSV whose header names a Close or
+    // Adj Close column. Held tickers are lined up on the dates they all have, at most the
+    // last -Dokx.risk.days returns (default 2520, ten years). Files are read, the
+    // covariance matrix filled and every day's scenario revalued on the fork-join pool;
+    // a report is reused until the holdings or a price file change.
+    static final class Risk {
+        static final File DIR = new File(System.getProperty("okx.prices", "prices"));
+        static final int DAYS = Math.max(2, Integer.getInteger("okx.risk.days", 2520));
+        static final class Position {
+            final String ticker; final int qty; final double price, value, vol, correlation, share;
+            Position(String ticker, int qty, double price, double value, double vol, double correlation, double share) {
+                this.ticker = ticker; this.qty = qty; this.price = price; this.value = value;
+                this.vol = vol; this.correlation = correlation; this.share = share;
+            }
+        }
+        static final class Report {
+            final java.util.List<Position> positions = new ArrayList<>();
+            final java.util.List<String> unpriced = new ArrayList<>();
+            // Priced, but their files share fewer than two dates, so there is nothing to report.
+            final java.util.List<String> unaligned = new ArrayList<>();
+            double value, dailyVol, var95, var99;
+            int days; LocalDate from, to;
+            long millis;
+            double annualVol() { return dailyVol * Math.sqrt(252); }
+        }
+        // Dates as epoch days and closes, in date order.
+        static final class Closes {
+            final int[] days; final double[] closes;
+            Closes(int[] days, double[] closes) { this.days = days; this.closes = closes; }
+        }
+        private static volatile Object[] cached = { null, null }; // key, report
+
+        static Report report(Map<String, Integer> holdings) throws IOException {
+            TreeMap<String, Integer> held = new TreeMap<>();
+            for(Map.Entry<String, Integer> e : holdings.entrySet()) if(e.getValue() > 0) held.put(e.getKey(), e.getValue());
+            ArrayList<Object> key = new ArrayList<>();
+            key.add(held);
+            for(String t : held.keySet()) { File f = file(DIR, t); key.add(f.lastModified()); key.add(f.length()); }
+            Object[] c = cached;
+            if(key.equals(c[0])) return (Report)c[1];
+            Report r = compute(DIR, held);
+            cached = new Object[] { key, r };
+            return r;
+        }
+        static File file(File dir, String ticker) { return new File(dir, ticker + ".csv"); }
+
+        static Report compute(File dir, SortedMap<String, Integer> held) throws IOException {
+            long t0 = System.nanoTime();
+            Report r = new Report();
+            ArrayList<String> tickers = new ArrayList<>();
+            for(String t : held.keySet()) if(file(dir, t).isFile()) tickers.add(t); else r.unpriced.add(t);
+            Closes[] all;
+            try { all = tickers.parallelStream().map(t -> { try { return read(file(dir, t)); } catch (IOException e) { throw new UncheckedIOException(e); } }).toArray(Closes[]::new); }
+            catch (UncheckedIOException e) { throw e.getCause(); }
+            for(int i = all.length - 1; i >= 0; i--) if(all[i].days.length < 2) { r.unpriced.add(tickers.remove(i)); all = remove(all, i); }
+            Collections.sort(r.unpriced);
+            int n = tickers.size();
+            if(n == 0) { r.millis = (System.nanoTime() - t0) / 1_000_000; return r; }
+
+            // Dates every ticker has, then the closes on them, newest DAYS + 1 only.
+            int[] common = all[0].days;
+            for(int i = 1; i < n; i++) common = intersect(common, all[i].days);
+            int from = Math.max(0, common.length - DAYS - 1), t = Math.max(0, common.length - from - 1);
+            int[] dates = Arrays.copyOfRange(common, from, common.length);
+            if(dates.length < 2) {
+                r.unaligned.addAll(tickers);
+                r.millis = (System.nanoTime() - t0) / 1_000_000;
+                return r;
+            }
+            double[][] returns = new double[n][];
+            double[] last = new double[n], mean = new double[n];
+            Closes[] series = all;
+            IntStream.range(0, n).parallel().forEach(i -> {
+                double[] px = align(series[i], dates), ret = new double[Math.max(0, t)];
+                for(int k = 0; k < ret.length; k++) ret[k] = px[k + 1] / px[k] - 1;
+                double sum = 0;
+                for(double x : ret) sum += x;
+                returns[i] = ret; last[i] = px[px.length - 1]; mean[i] = ret.length == 0 ? 0 : sum / ret.length;
+            });
+            double[] v = new double[n];
+            for(int i = 0; i < n; i++) { v[i] = held.get(tickers.get(i)) * last[i]; r.value += v[i]; }
+            r.days = t;
+            if(dates.length > 0) { r.from = LocalDate.ofEpochDay(dates[0]); r.to = LocalDate.ofEpochDay(dates[dates.length - 1]); }
+
+            // Covariance of daily returns; row i fills j >= i.
+            double[][] cov = new double[n][n];
+            if(t > 1) IntStream.range(0, n).parallel().forEach(i -> {
+                double[] a = returns[i];
+                for(int j = i; j < n; j++) {
+                    double[] b = returns[j];
+                    double s = 0, ma = mean[i], mb = mean[j];
+                    for(int k = 0; k < t; k++) s += (a[k] - ma) * (b[k] - mb);
+                    cov[i][j] = s / (t - 1);
+                }
+            });
+            for(int i = 0; i < n; i++) for(int j = 0; j < i; j++) cov[i][j] = cov[j][i];
+            double[] cv = new double[n]; // cov · v, each position's covariance with the portfolio
+            IntStream.range(0, n).parallel().forEach(i -> { double s = 0; for(int j = 0; j < n; j++) s += cov[i][j] * v[j]; cv[i] = s; });
+            double var = 0;
+            for(int i = 0; i < n; i++) var += v[i] * cv[i];
+            r.dailyVol = Math.sqrt(Math.max(0, var));
+
+            // Historical VaR: today's positions through each past day's returns.
+            double[] pnl = new double[t];
+            IntStream.range(0, t).parallel().forEach(k -> { double s = 0; for(int i = 0; i < n; i++) s += v[i] * returns[i][k]; pnl[k] = s; });
+            Arrays.parallelSort(pnl);
+            r.var95 = t == 0 ? 0 : -pnl[(int)Math.floor(0.05 * (t - 1))];
+            r.var99 = t == 0 ? 0 : -pnl[(int)Math.floor(0.01 * (t - 1))];
+
+            for(int i = 0; i < n; i++) {
+                double sd = Math.sqrt(cov[i][i]);
+                r.positions.add(new Position(tickers.get(i), held.get(tickers.get(i)), last[i], v[i], sd * Math.sqrt(252),
+                    sd == 0 || r.dailyVol == 0 ? 0 : cv[i] / (sd * r.dailyVol), var == 0 ? 0 : v[i] * cv[i] / var));
+            }
+            r.millis = (System.nanoTime() - t0) / 1_000_000;
+            Metrics.RISK.since(t0);
+            return r;
+        }
+        static Closes read(File f) throws IOException {
+            int[] days = new int[4096];
+            double[] closes = new double[4096];
+            int n = 0, col = 1;
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"))) {
+                for(String line; (line = in.readLine()) != null; ) {
+                    if(line.isEmpty() || line.startsWith("#")) continue;
+                    String[] c = line.split(",");
+                    if(c[0].isEmpty() || !Character.isDigit(c[0].charAt(0))) {
+                        for(int i = 1; i < c.length; i++) if(c[i].trim().equalsIgnoreCase("adj close") || (c[i].trim().equalsIgnoreCase("close") && col == 1)) col = i;
+                        continue;
+                    }
+                    if(col >= c.length || c[col].isEmpty() || c[col].equals("null")) continue;
+                    double close = Double.parseDouble(c[col]);
+                    if(!(close > 0)) continue;
+                    String d = c[0].trim();
+                    if(n == days.length) { days = Arrays.copyOf(days, n * 2); closes = Arrays.copyOf(closes, n * 2); }
+                    days[n] = (int)LocalDate.of(Integer.parseInt(d.substring(0, 4)), Integer.parseInt(d.substring(5, 7)), Integer.parseInt(d.substring(8, 10))).toEpochDay();
+                    closes[n++] = close;
+                }
+            } catch (RuntimeException e) { throw new IOException(f + ": " + e, e); }
+            // Files are usually oldest first; sort (and drop repeated dates) if not.
+            boolean sorted = true;
+            for(int i = 1; i < n && sorted; i++) sorted = days[i-1] < days[i];
+            if(!sorted) {
+                TreeMap<Integer, Double> byDay = new TreeMap<>();
+                for(int i = 0; i < n; i++) byDay.put(days[i], closes[i]);
+                n = 0;
+                for(Map.Entry<Integer, Double> e : byDay.entrySet()) { days[n] = e.getKey(); closes[n++] = e.getValue(); }
+            }
+            return new Closes(Arrays.copyOf(days, n), Arrays.copyOf(closes, n));
+        }
+        private static int[] intersect(int[] a, int[] b) {
+            int[] out = new int[Math.min(a.length, b.length)];
+            int n = 0;
+            for(int i = 0, j = 0; i < a.length && j < b.length; ) {
+                if(a[i] < b[j]) i++; else if(a[i] > b[j]) j++; else { out[n++] = a[i]; i++; j++; }
+            }
+            return Arrays.copyOf(out, n);
+        }
+        // Closes on the given dates, all of which c has.
+        private static double[] align(Closes c, int[] dates) {
+            double[] out = new double[dates.length];
+            for(int k = 0, j = 0; k < dates.length; k++) { while(c.days[j] < dates[k]) j++; out[k] = c.closes[j]; }
+            return out;
+        }
+        private static Closes[] remove(Closes[] a, int i) {
+            Closes[] out = new Closes[a.length - 1];
+            System.arraycopy(a, 0, out, 0, i);
+            System.arraycopy(a, i + 1, out, i, a.length - i - 1);
+            return out;
+        }
+    }
+
     // Animation:
+    // okx.animation=full|low|off picks the frame rate; -Dokx.animation.stats=true draws
+    // the frame-time counter. The gradient lives in a VolatileImage, dots are pre-drawn
+    // sprites, and the timer backs off when frames run long or the window is hidden.
     class AnimatedBGPanel extends JPanel {
+        private final String mode = System.getProperty("okx.animation", "full");
+        private final boolean showStats = Boolean.getBoolean("okx.animation.stats");
+        private final int baseDelay = mode.equals("low") ? 50 : 16, maxDelay = 100;
+        private final int wavePoints = mode.equals("low") ? 60 : 180;
+        private final long start = System.nanoTime();
         private float waveOffset = 0;
         private javax.swing.Timer timer;
+        private long pendingSince; // a repaint is queued and not yet painted
+        private VolatileImage backdrop;
+        private final BufferedImage[] dots = new BufferedImage[3];
+        private final Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO, 182);
+        private final BasicStroke stroke1 = new BasicStroke(0.6f * 8, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+        private final BasicStroke stroke2 = new BasicStroke(0.36f * 8, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+        private final AlphaComposite wave1Alpha = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.8f);
+        private final AlphaComposite wave2Alpha = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f);
+        private final AlphaComposite dotAlpha = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.19f);
+        private GradientPaint wave1Paint, wave2Paint;
+        private int paintW = -1, paintH = -1;
+        // Frame-time counter: moving average of paintComponent time, and frames per second.
+        private double frameMillis;
+        private int fps, framesThisSecond;
+        private long secondStart = System.nanoTime();
+
         public AnimatedBGPanel() {
             setLayout(null);
             setBackground(bgColor);
-            timer = new javax.swing.Timer(16, e -> { waveOffset += 0.015f; repaint(); });
-            timer.start();
+            timer = new javax.swing.Timer(baseDelay, e -> {
+                long now = System.nanoTime();
+                if(pendingSince != 0 && now - pendingSince < 250_000_000L) return;
+                pendingSince = now;
+                waveOffset = (now - start) / 1e9f * 0.9f;
+                repaint();
+            });
+            timer.setCoalesce(true);
+            addHierarchyListener(e -> {
+                if((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) updateRunning();
+            });
+        }
+        public void addNotify() {
+            super.addNotify();
+            Window w = SwingUtilities.getWindowAncestor(this);
+            if(w != null) w.addWindowStateListener(e -> updateRunning());
+            updateRunning();
+        }
+        private void updateRunning() {
+            Window w = SwingUtilities.getWindowAncestor(this);
+            boolean iconified = w instanceof Frame && (((Frame)w).getExtendedState() & Frame.ICONIFIED) != 0;
+            if(!mode.equals("off") && isShowing() && !iconified) { if(!timer.isRunning()) timer.start(); }
+            else timer.stop();
         }
+        double frameMillis() { return frameMillis; }
+        int fps() { return fps; }
+
         protected void paintComponent(Graphics g) {
+            StartupTimer.mark("first frame");
+            long t0 = System.nanoTime();
             Graphics2D g2 = (Graphics2D)g.create();
             int w = getWidth(), h = getHeight();
-            // Main bg
-            g2.setPaint(new GradientPaint(0,0, bgColor, w,h, new Color(25,32,48)));
-            g2.fillRect(0,0,w,h);
+            if(w != paintW || h != paintH) resized(w, h);
+            drawBackdrop(g2, w, h);
             // Sine waves (blue/green)
-            drawWave(g2, 0.8f, 90, 1.3f, accent1, 0.6f);
-            drawWave(g2, 0.5f, 130, 0.7f, accent2, 0.36f);
-            drawDots(g2, accent2, 0.19f);
+            drawWave(g2, wave1Alpha, 90, 1.3f, wave1Paint, stroke1);
+            drawWave(g2, wave2Alpha, 130, 0.7f, wave2Paint, stroke2);
+            drawDots(g2);
+            if(showStats) {
+                g2.setComposite(AlphaComposite.SrcOver);
+                g2.setColor(Color.WHITE);
+                g2.setFont(mainFont.deriveFont(12f));
+                g2.drawString(String.format("%.2f ms/frame  %d fps  %s", frameMillis, fps, mode), 10, h - 10);
+            }
             g2.dispose();
+            pendingSince = 0;
+            recordFrame(System.nanoTime() - t0);
+        }
+        private void resized(int w, int h) {
+            paintW = w; paintH = h;
+            wave1Paint = new GradientPaint(0, h - 90 - 40, accent1.brighter(), w, h - 90 + 10, accent1.darker());
+            wave2Paint = new GradientPaint(0, h - 130 - 40, accent2.brighter(), w, h - 130 + 10, accent2.darker());
+            if(backdrop != null) { backdrop.flush(); backdrop = null; }
+        }
+        // Main bg, redrawn into the cached image only on resize or when VRAM contents are lost.
+        private void drawBackdrop(Graphics2D g2, int w, int h) {
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            if(gc == null || w <= 0 || h <= 0) return;
+            do {
+                boolean redraw = false;
+                if(backdrop == null || backdrop.validate(gc) == VolatileImage.IMAGE_INCOMPATIBLE) {
+                    if(backdrop != null) backdrop.flush();
+                    backdrop = gc.createCompatibleVolatileImage(w, h);
+                    redraw = true;
+                } else if(backdrop.contentsLost()) redraw = true;
+                if(redraw || backdrop.validate(gc) == VolatileImage.IMAGE_RESTORED) {
+                    Graphics2D b = backdrop.createGraphics();
+                    b.setPaint(new GradientPaint(0,0, bgColor, w,h, new Color(25,32,48)));
+                    b.fillRect(0,0,w,h);
+                    b.dispose();
+                }
+                g2.drawImage(backdrop, 0, 0, null);
+            } while(backdrop.contentsLost());
         }
-        private void drawWave(Graphics2D g2, float alpha, int yOffset, double freq, Color color, float thickness) {
-            g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha));
-            g2.setStroke(new BasicStroke((float)(thickness * 8), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        private void drawWave(Graphics2D g2, AlphaComposite alpha, int yOffset, double freq, GradientPaint paint, BasicStroke stroke) {
+            g2.setComposite(alpha);
+            g2.setStroke(stroke);
             int w = getWidth(), h = getHeight();
-            Path2D.Float path = new Path2D.Float();
-            int points = 180;
-            for (int i = 0; i <= points; i++) {
-                float x = i * w / (float)points;
-                float y = (float)(Math.sin(waveOffset + i * freq * Math.PI / 90) * 22 + h - yOffset);
+            path.reset();
+            // Same curve as 180 samples; low power mode samples fewer points.
+            double step = 180.0 / wavePoints;
+            for (int i = 0; i <= wavePoints; i++) {
+                double k = i * step;
+                float x = (float)(k * w / 180);
+                float y = (float)(Math.sin(waveOffset + k * freq * Math.PI / 90) * 22 + h - yOffset);
                 if (i == 0) path.moveTo(x, y);
                 else path.lineTo(x, y);
             }
-            g2.setPaint(new GradientPaint(0, h - yOffset - 40, color.brighter(), w, h - yOffset + 10, color.darker()));
+            g2.setPaint(paint);
             g2.draw(path);
         }
-        private void drawDots(Graphics2D g2, Color color, float alpha) {
+        private void drawDots(Graphics2D g2) {
             int w = getWidth(), h = getHeight();
-            g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha));
+            g2.setComposite(dotAlpha);
             for (int i = 0; i < 13; i++) {
                 int r = 13 + (i % 3) * 7;
                 int x = (int)(Math.abs(Math.sin(waveOffset + i)) * w * 0.83 + 42 - r/2);
                 int y = (int)(Math.abs(Math.cos(waveOffset*0.7 + i*1.2)) * h * 0.55 + 70 - r/2);
-                g2.setPaint(new RadialGradientPaint(
-                    new Point2D.Float(x+r/2, y+r/2), r/2,
+                g2.drawImage(dot(i % 3, r), x, y, null);
+            }
+        }
+        private BufferedImage dot(int k, int r) {
+            if(dots[k] == null) {
+                BufferedImage img = new BufferedImage(r, r, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = img.createGraphics();
+                g.setPaint(new RadialGradientPaint(
+                    new Point2D.Float(r/2, r/2), r/2,
                     new float[]{0f, 1f},
-                    new Color[]{new Color(color.getRed(), color.getGreen(), color.getBlue(), 110), new Color(0,0,0,0)}
+                    new Color[]{new Color(accent2.getRed(), accent2.getGreen(), accent2.getBlue(), 110), new Color(0,0,0,0)}
                 ));
-                g2.fillOval(x, y, r, r);
+                g.fillOval(0, 0, r, r);
+                g.dispose();
+                dots[k] = img;
             }
+            return dots[k];
+        }
+        // Frames that eat over half their budget halve the rate; cheap ones win it back.
+        private void recordFrame(long nanos) {
+            Metrics.PAINT.record(nanos);
+            double ms = nanos / 1e6;
+            frameMillis = frameMillis == 0 ? ms : frameMillis * 0.9 + ms * 0.1;
+            framesThisSecond++;
+            long now = System.nanoTime();
+            if(now - secondStart >= 1_000_000_000L) { fps = framesThisSecond; framesThisSecond = 0; secondStart = now; }
+            int delay = timer.getDelay();
+            if(frameMillis > delay * 0.5 && delay < maxDelay) timer.setDelay(Math.min(maxDelay, delay * 2));
+            else if(frameMillis < delay * 0.125 && delay > baseDelay) timer.setDelay(Math.max(baseDelay, delay / 2));
         }
     }
 
@@ -272,19 +1794,31 @@ public class PortfolioAppOKXAnimated extends JFrame {
             JButton regBtn = okxButton("Create Account", accent2, accent1);
             regBtn.addActionListener(e -> cardLayout.show(cardPanel, "register"));
 
+            // Sign-in runs off the EDT: it may wait for this account to finish loading.
             loginBtn.addActionListener(e -> {
                 String u = username.getText().trim();
                 String p = new String(password.getPassword());
-                if(users.containsKey(u) && users.get(u).password.equals(p)) {
-                    currentUser = users.get(u);
-                    error.setText(" ");
-                    username.setText(""); password.setText("");
-                    menuPanel.updateUser();
-                    cardLayout.show(cardPanel, "menu");
-                } else {
-                    error.setText("Invalid credentials.");
-                }
+                loginBtn.setEnabled(false);
+                if(!service.isLoaded()) loading();
+                new SwingWorker<User, Void>() {
+                    protected User doInBackground() throws IOException { return service.login(u, p); }
+                    protected void done() {
+                        loginBtn.setEnabled(true);
+                        error.setForeground(failRed);
+                        try { currentUser = get(); }
+                        catch (Exception ex) { ex.printStackTrace(); error.setText("Could not load account data."); return; }
+                        if(currentUser != null) {
+                            error.setText(" ");
+                            username.setText(""); password.setText("");
+                            menuPanel.updateUser();
+                            cardLayout.show(cardPanel, "menu");
+                        } else {
+                            error.setText("Invalid credentials.");
+                        }
+                    }
+                }.execute();
             });
+            if(!service.isLoaded()) loading();
 
             form.add(Box.createVerticalStrut(14));
             form.add(uLab); form.add(username);
@@ -298,6 +1832,13 @@ public class PortfolioAppOKXAnimated extends JFrame {
             JPanel box = makeCard(form, 420, 370);
             add(box, BorderLayout.CENTER);
         }
+        private static final String LOADING = "Loading account data…";
+        private void loading() { error.setForeground(accent2); error.setText(LOADING); }
+        void loaded() {
+            if(!error.getText().equals(LOADING)) return;
+            error.setForeground(failRed);
+            error.setText(" ");
+        }
     }
 
     // Register Panel:
@@ -323,16 +1864,23 @@ public class PortfolioAppOKXAnimated extends JFrame {
                 String u = username.getText().trim();
                 String p = new String(password.getPassword());
                 String c = new String(confirm.getPassword());
-                if(u.isEmpty()||p.isEmpty()) error.setText("All fields required.");
-                else if(users.containsKey(u)) error.setText("Username taken.");
-                else if(!p.equals(c)) error.setText("Passwords don't match.");
-                else {
-                    users.put(u, new User(u,p));
-                    error.setForeground(accent2);
-                    error.setText("Registered! Go login.");
-                    username.setText(""); password.setText(""); confirm.setText("");
-                    javax.swing.Timer t = new javax.swing.Timer(1100, ev -> cardLayout.show(cardPanel,"login")); t.setRepeats(false); t.start();
-                }
+                if(u.isEmpty()||p.isEmpty()) { error.setText("All fields required."); return; }
+                if(!p.equals(c)) { error.setText("Passwords don't match."); return; }
+                // Off the EDT: registering waits for the accounts to finish loading.
+                regBtn.setEnabled(false);
+                new SwingWorker<Boolean, Void>() {
+                    protected Boolean doInBackground() { return service.register(u, p); }
+                    protected void done() {
+                        regBtn.setEnabled(true);
+                        boolean ok;
+                        try { ok = get(); } catch(Exception ex) { ex.printStackTrace(); ok = false; }
+                        if(!ok) { error.setText("Username taken."); return; }
+                        error.setForeground(accent2);
+                        error.setText("Registered! Go login.");
+                        username.setText(""); password.setText(""); confirm.setText("");
+                        javax.swing.Timer t = new javax.swing.Timer(1100, ev -> cardLayout.show(cardPanel,"login")); t.setRepeats(false); t.start();
+                    }
+                }.execute();
             });
 
             form.add(Box.createVerticalStrut(8));
@@ -368,15 +1916,31 @@ public class PortfolioAppOKXAnimated extends JFrame {
             JButton buyBtn = okxButton("Buy", accent2, accent1);
             JButton sellBtn = okxButton("Sell", accent1, accent2);
             JButton histBtn = okxButton("Transactions", accent2, accent1);
-            JButton undoBtn = okxButton("Undo Last", accent1, accent2);
+            JButton firmBtn = okxButton("Firm", accent1, accent2);
+            JButton chartBtn = okxButton("Chart", accent1, accent2);
+            JButton basketBtn = okxButton("Basket", accent2, accent1);
+            JButton undoBtn = okxButton("Undo", accent1, accent2);
+            JButton redoBtn = okxButton("Redo", accent2, accent1);
             JButton logoutBtn = okxButton("Logout", failRed, accent2);
 
             btns.add(Box.createVerticalStrut(14));
             btns.add(viewBtn); btns.add(Box.createVerticalStrut(14));
-            btns.add(buyBtn); btns.add(Box.createVerticalStrut(14));
-            btns.add(sellBtn); btns.add(Box.createVerticalStrut(14));
-            btns.add(histBtn); btns.add(Box.createVerticalStrut(14));
-            btns.add(undoBtn); btns.add(Box.createVerticalStrut(18));
+            JPanel tradeRow = new JPanel(new FlowLayout(FlowLayout.CENTER, 12, 0));
+            tradeRow.setOpaque(false);
+            tradeRow.add(buyBtn); tradeRow.add(sellBtn);
+            btns.add(tradeRow); btns.add(Box.createVerticalStrut(14));
+            JPanel histRow = new JPanel(new FlowLayout(FlowLayout.CENTER, 12, 0));
+            histRow.setOpaque(false);
+            histRow.add(histBtn); histRow.add(firmBtn);
+            btns.add(histRow); btns.add(Box.createVerticalStrut(14));
+            JPanel viewRow = new JPanel(new FlowLayout(FlowLayout.CENTER, 12, 0));
+            viewRow.setOpaque(false);
+            viewRow.add(chartBtn); viewRow.add(basketBtn);
+            btns.add(viewRow); btns.add(Box.createVerticalStrut(14));
+            JPanel undoRow = new JPanel(new FlowLayout(FlowLayout.CENTER, 12, 0));
+            undoRow.setOpaque(false);
+            undoRow.add(undoBtn); undoRow.add(redoBtn);
+            btns.add(undoRow); btns.add(Box.createVerticalStrut(18));
             btns.add(logoutBtn);
             JPanel box = makeCard(btns, 370, 430);
             add(box, BorderLayout.EAST);
@@ -385,25 +1949,19 @@ public class PortfolioAppOKXAnimated extends JFrame {
             buyBtn.addActionListener(e -> { buyPanel.refresh(); cardLayout.show(cardPanel, "buy"); });
             sellBtn.addActionListener(e -> { sellPanel.refresh(); cardLayout.show(cardPanel, "sell"); });
             histBtn.addActionListener(e -> { historyPanel.refresh(); cardLayout.show(cardPanel, "history"); });
-            undoBtn.addActionListener(e -> {
-                if(currentUser!=null && !currentUser.undoStack.isEmpty()) {
-                    Transaction last = currentUser.undoStack.pop();
-                    if(last.type==Transaction.Type.BUY) {
-                        Holding h = currentUser.portfolio.get(last.ticker);
-                        h.quantity -= last.qty;
-                        if(h.quantity<=0) currentUser.portfolio.remove(last.ticker);
-                    } else {
-                        Holding h = currentUser.portfolio.getOrDefault(last.ticker, new Holding(last.ticker,0));
-                        h.quantity += last.qty;
-                        currentUser.portfolio.put(last.ticker, h);
-                    }
-                    currentUser.history.remove(last);
-                    JOptionPane.showMessageDialog(MenuPanel.this, "Undid: "+last, "Undo", JOptionPane.INFORMATION_MESSAGE);
-                } else {
-                    JOptionPane.showMessageDialog(MenuPanel.this, "Nothing to undo.", "Undo", JOptionPane.WARNING_MESSAGE);
-                }
+            firmBtn.addActionListener(e -> { firmPanel.refresh(); cardLayout.show(cardPanel, "firm"); });
+            chartBtn.addActionListener(e -> { chartPanel.refresh(); cardLayout.show(cardPanel, "chart"); });
+            basketBtn.addActionListener(e -> { basketPanel.refresh(); cardLayout.show(cardPanel, "basket"); });
+            undoBtn.addActionListener(e -> undo(MenuPanel.this, 1));
+            redoBtn.addActionListener(e -> redo(MenuPanel.this));
+            logoutBtn.addActionListener(e -> {
+                User u = currentUser;
+                currentUser=null;
+                // Stop revaluing the old account on every tick.
+                if(portfolioPanel.live != null) { portfolioPanel.live.close(); portfolioPanel.live = null; }
+                cardLayout.show(cardPanel,"login");
+                serve(() -> { service.logout(u); return u; }, done -> {});
             });
-            logoutBtn.addActionListener(e -> { currentUser=null; cardLayout.show(cardPanel,"login"); });
         }
         public void updateUser() {
             if(currentUser!=null) userLabel.setText("Welcome, " + currentUser.username + "!");
@@ -411,65 +1969,527 @@ public class PortfolioAppOKXAnimated extends JFrame {
     }
 
     // Portfolio Panel:
+    // Holdings with cost basis and P&L. Unrealized P&L marks each holding at its live
+    // price when a feed is running, otherwise at the latest price it traded at in this
+    // account. A date in the as-of field swaps in the holdings at the end of that day.
     class PortfolioPanel extends CardPanel {
-        DefaultListModel<String> model = new DefaultListModel<>();
+        HoldingListModel model = new HoldingListModel();
+        DefaultListModel<String> past = new DefaultListModel<>();
         JList<String> list = new JList<>(model);
         JLabel empty = new JLabel("Portfolio is empty. Buy some stocks to get started!", SwingConstants.CENTER);
+        JLabel totals = new JLabel(" ");
+        JTextField asOf = okxField(7);
+        JButton asOfBtn = okxButton("As of", accent1, accent2);
+        JComboBox<CostBook.Method> costing = new JComboBox<>(CostBook.Method.values());
         JButton backBtn = okxButton("Back", accent2, accent1);
+        JButton riskBtn = okxButton("Risk", accent1, accent2);
+        // With a live feed: the signed-in account's value, and what was last painted.
+        MarketData.Valuation live;
+        long painted = -1;
         public PortfolioPanel() {
             super("Your Portfolio");
-            list.setFont(mainFont.deriveFont(19f));
+            list.setFont(mainFont.deriveFont(17f));
             list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            list.setPrototypeCellValue("BTCUSDT: 1000000 shares  avg $100000.00  P&L -$1000000.00");
             JScrollPane scroll = new JScrollPane(list);
-            scroll.setPreferredSize(new Dimension(420, 220));
+            scroll.setPreferredSize(new Dimension(600, 220));
             scroll.setBorder(null);
             empty.setFont(mainFont.deriveFont(17f));
             empty.setForeground(new Color(140,160,200));
-            JPanel center = new JPanel(new BorderLayout());
+            totals.setFont(mainFont.deriveFont(Font.BOLD, 16f));
+            totals.setForeground(accent2);
+            costing.setFont(mainFont.deriveFont(15f));
+            costing.setToolTipText("Which lots a sale is matched against");
+            asOf.setToolTipText("Show holdings at the end of this day, yyyy-MM-dd (blank = now)");
+            asOfBtn.setBorder(new EmptyBorder(8, 20, 8, 20));
+            JPanel controls = new JPanel(new FlowLayout(FlowLayout.RIGHT, 8, 0));
+            controls.setOpaque(false);
+            controls.add(asOf); controls.add(asOfBtn); controls.add(costing);
+            JPanel top = new JPanel(new BorderLayout(12, 0));
+            top.setOpaque(false);
+            top.add(totals, BorderLayout.CENTER);
+            top.add(controls, BorderLayout.EAST);
+            JPanel center = new JPanel(new BorderLayout(0, 10));
             center.setOpaque(false);
+            center.add(top, BorderLayout.NORTH);
             center.add(scroll, BorderLayout.CENTER);
             center.add(empty, BorderLayout.SOUTH);
 
-            JPanel box = makeCard(center, 500, 320);
+            JPanel box = makeCard(center, 760, 380);
             add(box, BorderLayout.CENTER);
 
             JPanel nav = new JPanel(new FlowLayout(FlowLayout.LEFT, 25, 0));
             nav.setOpaque(false);
-            nav.add(backBtn);
+            nav.add(backBtn); nav.add(riskBtn);
             add(nav, BorderLayout.SOUTH);
 
-            backBtn.addActionListener(e -> cardLayout.show(cardPanel, "menu"));
+            backBtn.addActionListener(e -> { asOf.setText(""); cardLayout.show(cardPanel, "menu"); });
+            riskBtn.addActionListener(e -> { riskPanel.refresh(); cardLayout.show(cardPanel, "risk"); });
+            asOfBtn.addActionListener(e -> refresh());
+            asOf.addActionListener(e -> refresh());
+            costing.addActionListener(e -> {
+                CostBook.Method m = (CostBook.Method)costing.getSelectedItem();
+                if(currentUser==null || m==currentUser.costs.method) return;
+                String name = currentUser.username;
+                serve(() -> { service.costing(name, m); return m; }, done -> refresh());
+            });
+            // Ticks are folded in at most -Dokx.ticks.fps (default 10) times a second.
+            if(MarketData.feed() != null) new javax.swing.Timer(1000 / Math.max(1, Integer.getInteger("okx.ticks.fps", 10)), e -> repaintLive()).start();
         }
         public void refresh() {
-            model.clear();
-            if(currentUser==null||currentUser.portfolio.isEmpty()) {
-                empty.setVisible(true);
-                list.setVisible(false);
-            } else {
-                java.util.List<String> tickers = new ArrayList<>(currentUser.portfolio.keySet());
-                Collections.sort(tickers);
-                for(String t:tickers) model.addElement(currentUser.portfolio.get(t).toString());
-                empty.setVisible(false);
-                list.setVisible(true);
+            long t0 = System.nanoTime();
+            try {
+                if(currentUser!=null) costing.setSelectedItem(currentUser.costs.method);
+                String day = asOf.getText().trim();
+                if(currentUser!=null && !day.isEmpty()) { showPast(day); return; }
+                list.setModel(model);
+                empty.setText("Portfolio is empty. Buy some stocks to get started!");
+                model.setUser(currentUser);
+                watch();
+                syncTotals();
+            } finally { Metrics.REFRESH_PORTFOLIO.since(t0); }
+        }
+        private void showPast(String day) {
+            past.clear();
+            list.setModel(past);
+            try {
+                Map<String, Integer> held = service.holdingsAt(currentUser.username, startOfDay(day, 1) - 1);
+                for(Map.Entry<String, Integer> e : held.entrySet()) past.addElement(e.getKey() + ": " + e.getValue() + " shares");
+                totals.setText("Holdings at the end of " + day);
+                empty.setText("Nothing was held on " + day + ".");
+            } catch(DateTimeException ex) {
+                totals.setText(" ");
+                empty.setText("Dates must look like 2025-05-29.");
             }
+            empty.setVisible(past.isEmpty());
+            list.setVisible(!past.isEmpty());
+        }
+        // A trade or undo touched one ticker; update just that row.
+        void changed(String ticker) {
+            if(currentUser==null || !model.showing(currentUser) || list.getModel()!=model) { refresh(); return; }
+            model.changed(ticker);
+            if(live != null) {
+                int sym = Symbols.id(ticker);
+                live.hold(sym, currentUser.portfolio.get(sym), currentUser.history.lastPrice(sym));
+            }
+            syncTotals();
+        }
+        // Revalues the signed-in account from scratch; ticks keep it current from here.
+        private void watch() {
+            MarketData feed = MarketData.feed();
+            if(live != null) live.close();
+            live = feed == null || currentUser == null ? null : feed.watch(currentUser);
+            painted = -1;
+        }
+        private void repaintLive() {
+            if(live == null || live.user != currentUser || list.getModel() != model || !isShowing()) return;
+            long v = live.version();
+            if(v == painted) return;
+            painted = v;
+            model.repaintAll();
+            syncTotals();
+        }
+        // O(holdings): every figure comes straight from the user's cost book.
+        private void syncTotals() {
+            boolean none = model.getSize()==0;
+            empty.setVisible(none);
+            list.setVisible(!none);
+            if(currentUser==null) { totals.setText(" "); return; }
+            double unrealized = 0;
+            for(int sym : currentUser.portfolio.symbols()) unrealized += HoldingListModel.unrealized(currentUser, sym);
+            String value = live != null && live.user == currentUser ? String.format("Value $%,.2f   ", live.value()) : "";
+            totals.setText(value + "Realized P&L " + HoldingListModel.money(currentUser.costs.realized()) + "   Unrealized " + HoldingListModel.money(unrealized));
         }
     }
 
-    // Buy/Sell Panel:
-    class TradePanel extends CardPanel {
-        boolean isBuy;
-        JTextField tickerField = this.okxField(9);
-        JTextField qtyField = this.okxField(9);
-        JTextField priceField = this.okxField(9);
-        JLabel msgLabel = new JLabel(" ");
-        JButton execBtn = okxButton("Buy", accent2, accent1);
-        JButton backBtn = okxButton("Back", accent1, accent2);
-        public TradePanel(boolean buy) {
-            super(buy ? "Buy Stock" : "Sell Stock");
-            isBuy = buy;
-            execBtn.setText(buy ? "Buy" : "Sell");
-            msgLabel.setFont(mainFont.deriveFont(Font.BOLD, 16f));
-            msgLabel.setForeground(failRed);
+    // Risk Panel:
+    // Volatility, historical VaR and each position's share of the risk, from the price
+    // files (see Risk). Worked out on okx-risk; opening it again with the same holdings
+    // and files shows the cached report.
+    class RiskPanel extends CardPanel {
+        final ExecutorService engine = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "okx-risk");
+            t.setDaemon(true);
+            return t;
+        });
+        final AtomicInteger runs = new AtomicInteger();
+        DefaultListModel<String> rows = new DefaultListModel<>();
+        JList<String> list = new JList<>(rows);
+        JLabel status = new JLabel(" "), summary = new JLabel(" ");
+        JButton backBtn = okxButton("Back", accent2, accent1);
+        public RiskPanel() {
+            super("Risk");
+            list.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 15));
+            list.setPrototypeCellValue(String.format("%-9s %9s %15s %7s %7s %6s %7s", "", "", "", "", "", "", ""));
+            JScrollPane scroll = new JScrollPane(list);
+            scroll.setPreferredSize(new Dimension(680, 230));
+            scroll.setBorder(null);
+            status.setFont(mainFont.deriveFont(15f));
+            status.setForeground(new Color(140,160,200));
+            summary.setFont(mainFont.deriveFont(Font.BOLD, 16f));
+            summary.setForeground(accent2);
+            JPanel top = new JPanel(new GridLayout(2, 1, 0, 4));
+            top.setOpaque(false);
+            top.add(summary); top.add(status);
+            JPanel center = new JPanel(new BorderLayout(0, 10));
+            center.setOpaque(false);
+            center.add(top, BorderLayout.NORTH);
+            center.add(scroll, BorderLayout.CENTER);
+
+            JPanel box = makeCard(center, 760, 400);
+            add(box, BorderLayout.CENTER);
+
+            JPanel nav = new JPanel(new FlowLayout(FlowLayout.LEFT, 25, 0));
+            nav.setOpaque(false);
+            nav.add(backBtn);
+            add(nav, BorderLayout.SOUTH);
+
+            backBtn.addActionListener(e -> cardLayout.show(cardPanel, "portfolio"));
+        }
+        public void refresh() {
+            rows.clear();
+            summary.setText(" ");
+            if(currentUser==null) return;
+            String user = currentUser.username;
+            int run = runs.incrementAndGet();
+            status.setText("Working out risk…");
+            engine.execute(() -> {
+                if(run != runs.get()) return;
+                Risk.Report r; String error = null;
+                try { r = Risk.report(service.holdings(user)); }
+                catch (IOException e) { r = null; error = e.getMessage(); }
+                catch (RuntimeException e) { e.printStackTrace(); r = null; error = e.toString(); }
+                Risk.Report report = r; String failed = error;
+                SwingUtilities.invokeLater(() -> { if(run == runs.get()) show(report, failed); });
+            });
+        }
+        private void show(Risk.Report r, String error) {
+            if(r == null) { status.setText("Could not work out risk: " + error); return; }
+            if(r.positions.isEmpty()) {
+                summary.setText(" ");
+                status.setText(!r.unaligned.isEmpty() ? "The price files for " + String.join(", ", r.unaligned) + " have no dates in common."
+                    : r.unpriced.isEmpty() ? "Nothing held." : "No price history in " + Risk.DIR + " for what you hold.");
+                return;
+            }
+            summary.setText(String.format("Value $%,.2f   Volatility %.1f%% a year   1-day VaR 95%% $%,.0f   99%% $%,.0f",
+                r.value, r.value == 0 ? 0 : r.annualVol() / r.value * 100, r.var95, r.var99));
+            String span = r.days < 2 ? "too little shared history" : String.format("%,d days, %s to %s", r.days, r.from, r.to);
+            status.setText(span + String.format(" (%d ms)", r.millis) + (r.unpriced.isEmpty() ? "" : "   no prices: " + String.join(", ", r.unpriced)));
+            rows.addElement(String.format("%-9s %9s %15s %7s %7s %6s %7s", "Ticker", "Qty", "Value", "Weight", "Vol", "Corr", "Risk"));
+            for(Risk.Position p : r.positions)
+                rows.addElement(String.format("%-9s %,9d %,15.2f %6.1f%% %6.1f%% %+6.2f %6.1f%%",
+                    p.ticker, p.qty, p.value, p.value / r.value * 100, p.vol * 100, p.correlation, p.share * 100));
+        }
+    }
+
+    // Firm Panel:
+    // Shares and value per ticker over every account, or over one group from groups.txt,
+    // read from the aggregate the service keeps up to date, so nothing is scanned here.
+    class FirmPanel extends CardPanel {
+        DefaultListModel<String> rows = new DefaultListModel<>();
+        JList<String> list = new JList<>(rows);
+        JComboBox<String> group = new JComboBox<>();
+        JLabel summary = new JLabel(" ");
+        JButton refreshBtn = okxButton("Refresh", accent1, accent2);
+        JButton backBtn = okxButton("Back", accent2, accent1);
+        public FirmPanel() {
+            super("Firm");
+            list.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 15));
+            list.setPrototypeCellValue(String.format("%-9s %14s %8s %12s %16s %7s", "", "", "", "", "", ""));
+            JScrollPane scroll = new JScrollPane(list);
+            scroll.setPreferredSize(new Dimension(680, 250));
+            scroll.setBorder(null);
+            summary.setFont(mainFont.deriveFont(Font.BOLD, 16f));
+            summary.setForeground(accent2);
+            group.setFont(mainFont);
+            JPanel top = new JPanel(new BorderLayout(12, 0));
+            top.setOpaque(false);
+            top.add(group, BorderLayout.WEST);
+            top.add(summary, BorderLayout.CENTER);
+            JPanel center = new JPanel(new BorderLayout(0, 10));
+            center.setOpaque(false);
+            center.add(top, BorderLayout.NORTH);
+            center.add(scroll, BorderLayout.CENTER);
+
+            JPanel box = makeCard(center, 760, 400);
+            add(box, BorderLayout.CENTER);
+
+            JPanel nav = new JPanel(new FlowLayout(FlowLayout.LEFT, 25, 0));
+            nav.setOpaque(false);
+            nav.add(backBtn); nav.add(refreshBtn);
+            add(nav, BorderLayout.SOUTH);
+
+            group.addActionListener(e -> totals());
+            refreshBtn.addActionListener(e -> totals());
+            backBtn.addActionListener(e -> cardLayout.show(cardPanel, "menu"));
+        }
+        public void refresh() {
+            Object was = group.getSelectedItem();
+            serve(service::groups, gs -> {
+                DefaultComboBoxModel<String> m = new DefaultComboBoxModel<>();
+                for(String g : gs) m.addElement(g);
+                if(was != null && m.getIndexOf(was) >= 0) m.setSelectedItem(was);
+                group.setModel(m);
+                totals();
+            });
+        }
+        private void totals() {
+            rows.clear();
+            if(!service.isIndexed()) { summary.setText("Still loading accounts…"); return; }
+            String g = (String)group.getSelectedItem();
+            serve(() -> service.aggregate(g), this::fill);
+        }
+        private void fill(java.util.List<Aggregate.Position> ps) {
+            rows.clear();
+            double total = 0;
+            for(Aggregate.Position p : ps) total += p.value;
+            summary.setText(ps.isEmpty() ? "Nothing held." : String.format("%,d tickers   Value $%,.2f", ps.size(), total));
+            if(ps.isEmpty()) return;
+            rows.addElement(String.format("%-9s %14s %8s %12s %16s %7s", "Ticker", "Shares", "Accounts", "Price", "Value", "Weight"));
+            for(Aggregate.Position p : ps)
+                rows.addElement(String.format("%-9s %,14d %,8d %,12.2f %,16.2f %6.1f%%", p.ticker, p.shares, p.accounts, p.price, p.value, total == 0 ? 0 : p.value / total * 100));
+        }
+    }
+
+    // Chart Panel:
+    // Portfolio value or one ticker's position over time. Drag pans, the wheel zooms
+    // and a double-click shows everything. Series are built and plotted on the
+    // okx-chart thread; the EDT only stretches the last finished image to the current
+    // range until the next one arrives, and a plot that is already stale is skipped.
+    class ChartPanel extends CardPanel {
+        static final String VALUE = "Portfolio value";
+        final ExecutorService plotter = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "okx-chart");
+            t.setDaemon(true);
+            return t;
+        });
+        final AtomicInteger loads = new AtomicInteger(), plots = new AtomicInteger();
+        JComboBox<String> pick = new JComboBox<>();
+        JLabel status = new JLabel(" ");
+        JButton backBtn = okxButton("Back", accent2, accent1);
+        Series series;
+        long from, to;
+        BufferedImage image;
+        long imageFrom, imageTo;
+        boolean picking;
+        JComponent canvas = new JComponent() {
+            protected void paintComponent(Graphics g) {
+                if(image == null || to <= from) return;
+                double span = to - from, w = getWidth();
+                int x = (int)Math.round((imageFrom - from) / span * w), iw = (int)Math.round((imageTo - imageFrom) / span * w);
+                g.drawImage(image, x, 0, iw, getHeight(), null);
+            }
+        };
+        public ChartPanel() {
+            super("Chart");
+            canvas.setPreferredSize(new Dimension(680, 300));
+            pick.setFont(mainFont.deriveFont(15f));
+            status.setFont(mainFont.deriveFont(15f));
+            status.setForeground(new Color(140,160,200));
+            JPanel top = new JPanel(new BorderLayout(12, 0));
+            top.setOpaque(false);
+            top.add(status, BorderLayout.CENTER);
+            top.add(pick, BorderLayout.EAST);
+            JPanel center = new JPanel(new BorderLayout(0, 10));
+            center.setOpaque(false);
+            center.add(top, BorderLayout.NORTH);
+            center.add(canvas, BorderLayout.CENTER);
+
+            JPanel box = makeCard(center, 760, 420);
+            add(box, BorderLayout.CENTER);
+
+            JPanel nav = new JPanel(new FlowLayout(FlowLayout.LEFT, 25, 0));
+            nav.setOpaque(false);
+            nav.add(backBtn);
+            add(nav, BorderLayout.SOUTH);
+
+            backBtn.addActionListener(e -> cardLayout.show(cardPanel, "menu"));
+            pick.addActionListener(e -> { if(!picking) load(); });
+            MouseAdapter mouse = new MouseAdapter() {
+                int lastX;
+                public void mousePressed(MouseEvent e) { lastX = e.getX(); }
+                public void mouseDragged(MouseEvent e) {
+                    long shift = (long)((lastX - e.getX()) / (double)Math.max(1, canvas.getWidth()) * (to - from));
+                    lastX = e.getX();
+                    view(from + shift, to + shift);
+                }
+                public void mouseWheelMoved(MouseWheelEvent e) {
+                    double f = Math.pow(1.25, e.getPreciseWheelRotation());
+                    long at = from + (long)(e.getX() / (double)Math.max(1, canvas.getWidth()) * (to - from));
+                    view(at - (long)((at - from) * f), at + (long)((to - at) * f));
+                }
+                public void mouseClicked(MouseEvent e) { if(e.getClickCount() == 2) showAll(); }
+            };
+            canvas.addMouseListener(mouse);
+            canvas.addMouseMotionListener(mouse);
+            canvas.addMouseWheelListener(mouse);
+            canvas.addComponentListener(new ComponentAdapter() {
+                public void componentResized(ComponentEvent e) { plot(); }
+            });
+        }
+        public void refresh() {
+            long t0 = System.nanoTime();
+            try {
+                picking = true;
+                pick.removeAllItems();
+                pick.addItem(VALUE);
+                if(currentUser!=null) for(String t : currentUser.history.tickers()) pick.addItem(t);
+                picking = false;
+                load();
+            } finally { Metrics.REFRESH_CHART.since(t0); }
+        }
+        // Builds the chosen series off the EDT, then shows all of it.
+        private void load() {
+            if(currentUser==null) return;
+            String user = currentUser.username, choice = (String)pick.getSelectedItem();
+            int gen = loads.incrementAndGet();
+            status.setText("Loading…");
+            plotter.execute(() -> {
+                if(gen != loads.get()) return;
+                Series s = service.withUser(user, u -> u.history.series(VALUE.equals(choice) ? -1 : Symbols.find(choice)));
+                SwingUtilities.invokeLater(() -> {
+                    if(s == null || gen != loads.get()) return;
+                    series = s;
+                    image = null;
+                    status.setText(s.size()==0 ? "No transactions yet." : String.format("%,d points", s.size()));
+                    showAll();
+                });
+            });
+        }
+        private void showAll() {
+            if(series == null || series.size() == 0) { canvas.repaint(); return; }
+            long a = series.times[0], b = series.times[series.size() - 1], pad = Math.max(60_000, (b - a) / 50);
+            view(a - pad, b + pad);
+        }
+        private void view(long a, long b) {
+            if(b - a < 60_000) { long mid = a + (b - a) / 2; a = mid - 30_000; b = mid + 30_000; }
+            from = a; to = b;
+            canvas.repaint();
+            plot();
+        }
+        private void plot() {
+            Series s = series;
+            int w = canvas.getWidth(), h = canvas.getHeight(), gen = plots.incrementAndGet();
+            if(s == null || s.size() == 0 || w <= 0 || h <= 0) return;
+            long a = from, b = to;
+            boolean money = VALUE.equals(pick.getSelectedItem());
+            plotter.execute(() -> {
+                if(gen != plots.get()) return;
+                BufferedImage img = Series.plot(s, a, b, w, h, money, accent2, new Color(48, 120, 255, 50));
+                SwingUtilities.invokeLater(() -> {
+                    if(series != s) return;
+                    image = img; imageFrom = a; imageTo = b;
+                    canvas.repaint();
+                });
+            });
+        }
+    }
+
+    // List models that read straight from the user's data. Rows are formatted only
+    // when the JList paints them, and trades send per-row events instead of a rebuild.
+    static class TransactionListModel extends AbstractListModel<String> {
+        private static final int CACHE = 2048;
+        private java.util.List<Transaction> rows = Collections.emptyList();
+        private int size;
+        // Keyed by row: history rows are built on demand, so they have no stable identity.
+        private final LinkedHashMap<Integer, String> formatted = new LinkedHashMap<Integer, String>(256, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> e) { return size() > CACHE; }
+        };
+        boolean showing(java.util.List<Transaction> source) { return rows == source; }
+        void setRows(java.util.List<Transaction> rows) {
+            if(size > 0) { int old = size; size = 0; fireIntervalRemoved(this, 0, old-1); }
+            formatted.clear();
+            this.rows = rows;
+            size = rows.size();
+            if(size > 0) fireIntervalAdded(this, 0, size-1);
+        }
+        void appended() { while(size < rows.size()) { size++; fireIntervalAdded(this, size-1, size-1); } }
+        void removedLast() { if(size > rows.size()) { size--; formatted.remove(size); fireIntervalRemoved(this, size, size); } }
+        public int getSize() { return size; }
+        public String getElementAt(int i) { return formatted.computeIfAbsent(i, k -> rows.get(k).toString()); }
+    }
+    // Rows for a SymbolMaster.complete() result; text is made only for painted rows.
+    static class SuggestionModel extends AbstractListModel<String> {
+        final int[] hits;
+        private SymbolMaster master;
+        private int size;
+        SuggestionModel(int max) { hits = new int[max]; }
+        void show(SymbolMaster m, int n) {
+            int old = size;
+            master = m; size = n;
+            if(old > 0) fireIntervalRemoved(this, 0, old - 1);
+            if(n > 0) fireIntervalAdded(this, 0, n - 1);
+        }
+        String symbol(int i) { return master.symbol(hits[i]); }
+        public int getSize() { return size; }
+        public String getElementAt(int i) {
+            String name = master.name(hits[i]);
+            return name.isEmpty() ? symbol(i) : symbol(i) + "  " + name;
+        }
+    }
+    static class HoldingListModel extends AbstractListModel<String> {
+        private User user;
+        private Holdings portfolio = new Holdings();
+        private final ArrayList<String> tickers = new ArrayList<>();
+        boolean showing(User source) { return user == source && source.portfolio == portfolio; }
+        void setUser(User user) {
+            if(!tickers.isEmpty()) { int old = tickers.size(); tickers.clear(); fireIntervalRemoved(this, 0, old-1); }
+            this.user = user;
+            portfolio = user == null ? new Holdings() : user.portfolio;
+            for(int sym : portfolio.symbols()) tickers.add(Symbols.name(sym));
+            Collections.sort(tickers);
+            if(!tickers.isEmpty()) fireIntervalAdded(this, 0, tickers.size()-1);
+        }
+        void changed(String ticker) {
+            int i = Collections.binarySearch(tickers, ticker);
+            int sym = Symbols.find(ticker);
+            boolean held = sym >= 0 && portfolio.get(sym) > 0;
+            if(i >= 0 && held) fireContentsChanged(this, i, i);
+            else if(i >= 0) { tickers.remove(i); fireIntervalRemoved(this, i, i); }
+            else if(held) { i = -i-1; tickers.add(i, ticker); fireIntervalAdded(this, i, i); }
+        }
+        void repaintAll() { if(!tickers.isEmpty()) fireContentsChanged(this, 0, tickers.size()-1); }
+        public int getSize() { return tickers.size(); }
+        public String getElementAt(int i) {
+            String t = tickers.get(i);
+            int sym = Symbols.find(t), qty = portfolio.get(sym);
+            CostBook book = user.costs;
+            if(book.open(sym) == 0) return t + ": " + qty + " shares";
+            long live = MarketData.feed() == null ? 0 : MarketData.feed().price(sym);
+            String at = live > 0 ? String.format("  @ $%.2f", live / (double)HistoryStore.PRICE_SCALE) : "";
+            return String.format("%s: %d shares%s  avg $%.2f  P&L %s", t, qty, at, book.cost(sym) / book.open(sym), money(unrealized(user, sym)));
+        }
+        // Marked at the live price when the feed has one, else at the latest trade price.
+        static double unrealized(User u, int sym) {
+            long live = MarketData.feed() == null ? 0 : MarketData.feed().price(sym);
+            long last = live > 0 ? live : u.history.lastPrice(sym);
+            return last < 0 ? 0 : u.costs.open(sym) * (last / (double)HistoryStore.PRICE_SCALE) - u.costs.cost(sym);
+        }
+        static String money(double v) { return String.format("%s$%,.2f", v < 0 ? "-" : "+", Math.abs(v)); }
+    }
+
+    // Buy/Sell Panel:
+    class TradePanel extends CardPanel {
+        boolean isBuy;
+        JTextField tickerField = this.okxField(9);
+        JTextField qtyField = this.okxField(9);
+        JTextField priceField = this.okxField(9);
+        JLabel msgLabel = new JLabel(" ");
+        JButton execBtn = okxButton("Buy", accent2, accent1);
+        JButton backBtn = okxButton("Back", accent1, accent2);
+        // Ticker suggestions from the symbol master, read through a Segment and into a
+        // reused array, so typing allocates nothing until a row is painted.
+        SuggestionModel suggestions = new SuggestionModel(8);
+        JList<String> suggestList = new JList<>(suggestions);
+        JPopupMenu popup = new JPopupMenu();
+        javax.swing.text.Segment typed = new javax.swing.text.Segment();
+        boolean accepting;
+        public TradePanel(boolean buy) {
+            super(buy ? "Buy Stock" : "Sell Stock");
+            isBuy = buy;
+            execBtn.setText(buy ? "Buy" : "Sell");
+            msgLabel.setFont(mainFont.deriveFont(Font.BOLD, 16f));
+            msgLabel.setForeground(failRed);
 
             JPanel form = new JPanel();
             form.setOpaque(false);
@@ -500,9 +2520,62 @@ public class PortfolioAppOKXAnimated extends JFrame {
 
             execBtn.addActionListener(e -> performTrade());
             backBtn.addActionListener(e -> cardLayout.show(cardPanel,"menu"));
+
+            suggestList.setFont(mainFont.deriveFont(16f));
+            suggestList.setFocusable(false);
+            suggestList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            popup.setFocusable(false);
+            popup.add(suggestList);
+            tickerField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+                public void insertUpdate(javax.swing.event.DocumentEvent e) { suggest(); }
+                public void removeUpdate(javax.swing.event.DocumentEvent e) { suggest(); }
+                public void changedUpdate(javax.swing.event.DocumentEvent e) {}
+            });
+            tickerField.addKeyListener(new KeyAdapter() {
+                public void keyPressed(KeyEvent e) {
+                    if(!popup.isVisible()) return;
+                    int i = suggestList.getSelectedIndex(), n = suggestions.getSize();
+                    switch(e.getKeyCode()) {
+                        case KeyEvent.VK_DOWN: suggestList.setSelectedIndex((i + 1) % n); break;
+                        case KeyEvent.VK_UP: suggestList.setSelectedIndex((i + n - 1) % n); break;
+                        case KeyEvent.VK_ENTER: accept(i); break;
+                        case KeyEvent.VK_ESCAPE: popup.setVisible(false); break;
+                        default: return;
+                    }
+                    e.consume();
+                }
+            });
+            tickerField.addFocusListener(new FocusAdapter() {
+                public void focusLost(FocusEvent e) { popup.setVisible(false); }
+            });
+            suggestList.addMouseListener(new MouseAdapter() {
+                public void mouseClicked(MouseEvent e) { accept(suggestList.locationToIndex(e.getPoint())); }
+            });
         }
         public void refresh() {
             tickerField.setText(""); qtyField.setText(""); priceField.setText(""); msgLabel.setText(" ");
+            ForkJoinPool.commonPool().execute(SymbolMaster::get); // maps and indexes the file on first use
+        }
+        private void suggest() {
+            SymbolMaster m = SymbolMaster.get();
+            javax.swing.text.Document d = tickerField.getDocument();
+            try { d.getText(0, d.getLength(), typed); }
+            catch (javax.swing.text.BadLocationException e) { return; }
+            int n = accepting || m.isEmpty() ? 0 : m.complete(typed, suggestions.hits);
+            suggestions.show(m, n);
+            if(n == 0 || !tickerField.isShowing()) { popup.setVisible(false); return; }
+            suggestList.setSelectedIndex(0);
+            suggestList.setVisibleRowCount(n);
+            if(popup.isVisible()) popup.pack();
+            else popup.show(tickerField, 0, tickerField.getHeight());
+        }
+        private void accept(int i) {
+            if(i < 0 || i >= suggestions.getSize()) return;
+            accepting = true;
+            tickerField.setText(suggestions.symbol(i));
+            accepting = false;
+            popup.setVisible(false);
+            qtyField.requestFocusInWindow();
         }
         private void performTrade() {
             String t = tickerField.getText().trim().toUpperCase();
@@ -512,84 +2585,2442 @@ public class PortfolioAppOKXAnimated extends JFrame {
             if(t.isEmpty()||qStr.isEmpty()||pStr.isEmpty()) { msgLabel.setText("All fields required."); return; }
             try { q = Integer.parseInt(qStr); price = Double.parseDouble(pStr); }
             catch(Exception ex) { msgLabel.setText("Quantity and price must be valid numbers."); return; }
-            if(isBuy) {
-                Holding h = currentUser.portfolio.get(t);
-                if(h==null) currentUser.portfolio.put(t, new Holding(t,q));
-                else h.quantity += q;
-                Transaction tx = new Transaction(Transaction.Type.BUY, t,q,price);
-                currentUser.history.add(tx);
-                currentUser.undoStack.push(tx);
+            String name = currentUser.username;
+            Transaction.Type type = isBuy ? Transaction.Type.BUY : Transaction.Type.SELL;
+            execBtn.setEnabled(false);
+            serve(() -> service.trade(name, type, t, q, price), r -> {
+                execBtn.setEnabled(true);
+                if(r.error!=null) { msgLabel.setForeground(failRed); msgLabel.setText(r.error); return; }
+                portfolioPanel.changed(t);
+                historyPanel.appended();
+                if(isBuy) {
+                    msgLabel.setForeground(accent2);
+                    msgLabel.setText("Bought "+q+"×"+t+" @ $"+String.format("%.2f", price));
+                } else {
+                    msgLabel.setForeground(accent1);
+                    msgLabel.setText("Sold "+q+"×"+t+" @ $"+String.format("%.2f", price));
+                }
+            });
+        }
+    }
+
+    // Basket Panel:
+    // Several buys and sells in one go, one side,ticker,quantity,price line each (the
+    // import format, without the time). Either every leg goes through or none does, and
+    // Undo takes the whole basket back.
+    class BasketPanel extends CardPanel {
+        JTextArea legs = new JTextArea(10, 28);
+        JLabel msgLabel = new JLabel(" ");
+        JButton execBtn = okxButton("Submit", accent2, accent1);
+        JButton backBtn = okxButton("Back", accent1, accent2);
+        public BasketPanel() {
+            super("Basket Order");
+            msgLabel.setFont(mainFont.deriveFont(Font.BOLD, 16f));
+            msgLabel.setForeground(failRed);
+            legs.setFont(mainFont.deriveFont(17f));
+            legs.setBackground(new Color(29,34,49));
+            legs.setForeground(Color.WHITE);
+            legs.setCaretColor(accent1);
+            legs.setSelectionColor(accent2);
+            legs.setBorder(new EmptyBorder(10,14,10,14));
+            JScrollPane scroll = new JScrollPane(legs);
+            scroll.setBorder(new OKXFieldBorder(accent1, 2f, 18));
+
+            JPanel form = new JPanel();
+            form.setOpaque(false);
+            form.setLayout(new BoxLayout(form, BoxLayout.Y_AXIS));
+            JLabel lab = new JLabel("One trade per line, e.g. BUY,AAPL,10,189.50");
+            lab.setFont(mainFont.deriveFont(19f)); lab.setForeground(accent2);
+            lab.setAlignmentX(LEFT_ALIGNMENT); scroll.setAlignmentX(LEFT_ALIGNMENT); msgLabel.setAlignmentX(LEFT_ALIGNMENT);
+            form.add(Box.createVerticalStrut(6));
+            form.add(lab); form.add(Box.createVerticalStrut(8));
+            form.add(scroll);
+            form.add(Box.createVerticalStrut(10));
+            form.add(msgLabel);
+            form.add(Box.createVerticalStrut(18));
+            JPanel btnRow = new JPanel(new FlowLayout(FlowLayout.CENTER, 22, 0));
+            btnRow.setOpaque(false);
+            btnRow.setAlignmentX(LEFT_ALIGNMENT);
+            btnRow.add(execBtn); btnRow.add(backBtn);
+            form.add(btnRow);
+
+            JPanel box = makeCard(form, 560, 500);
+            add(box, BorderLayout.CENTER);
+
+            execBtn.addActionListener(e -> submit());
+            backBtn.addActionListener(e -> cardLayout.show(cardPanel,"menu"));
+        }
+        public void refresh() { msgLabel.setText(" "); }
+        private void submit() {
+            if(currentUser==null) return;
+            String[] lines = legs.getText().split("\n");
+            TradeImporter.Chunk c = TradeImporter.basket(lines);
+            msgLabel.setForeground(failRed);
+            if(!c.errors.isEmpty()) { msgLabel.setText(c.errors.get(0)); return; }
+            if(lines.length > TradeImporter.CHUNK) { msgLabel.setText("Basket is too large."); return; }
+            String name = currentUser.username;
+            execBtn.setEnabled(false);
+            serve(() -> service.basket(name, c.rows), r -> {
+                execBtn.setEnabled(true);
+                if(r.error!=null) { msgLabel.setText(r.error); return; }
+                for(Transaction tx : c.rows) portfolioPanel.changed(tx.ticker);
+                historyPanel.appended();
+                legs.setText("");
                 msgLabel.setForeground(accent2);
-                msgLabel.setText("Bought "+q+"×"+t+" @ $"+String.format("%.2f", price));
-            } else {
-                Holding h = currentUser.portfolio.get(t);
-                if(h==null) { msgLabel.setForeground(failRed); msgLabel.setText("You do not have any "+t); return; }
-                if(q > h.quantity) { msgLabel.setForeground(failRed); msgLabel.setText("Not enough shares."); return; }
-                h.quantity -= q;
-                if(h.quantity==0) currentUser.portfolio.remove(t);
-                Transaction tx = new Transaction(Transaction.Type.SELL, t,q,price);
-                currentUser.history.add(tx);
-                currentUser.undoStack.push(tx);
-                msgLabel.setForeground(accent1);
-                msgLabel.setText("Sold "+q+"×"+t+" @ $"+String.format("%.2f", price));
-            }
+                msgLabel.setText("Basket of "+c.rows.size()+(c.rows.size()==1 ? " trade" : " trades")+" filled.");
+            });
         }
     }
 
     // History Panel:
     class HistoryPanel extends CardPanel {
-        DefaultListModel<String> model = new DefaultListModel<>();
+        TransactionListModel model = new TransactionListModel();
         JList<String> list = new JList<>(model);
         JLabel empty = new JLabel("No transactions yet.", SwingConstants.CENTER);
+        JTextField tickerFilter = okxField(5);
+        JTextField fromFilter = okxField(7);
+        JTextField toFilter = okxField(7);
+        JButton filterBtn = okxButton("Filter", accent1, accent2);
+        JButton undoToBtn = okxButton("Undo to Here", accent1, accent2);
+        JButton importBtn = okxButton("Import…", accent2, accent1);
         JButton backBtn = okxButton("Back", accent2, accent1);
         public HistoryPanel() {
             super("Transactions");
             list.setFont(mainFont.deriveFont(17f));
             list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            list.setPrototypeCellValue("SELL 10000×BTCUSDT @ 100000.00 on 29 May 2025 05:06 AM PKT");
             JScrollPane scroll = new JScrollPane(list);
             scroll.setPreferredSize(new Dimension(520, 260));
             scroll.setBorder(null);
             empty.setFont(mainFont.deriveFont(16f));
             empty.setForeground(new Color(120,128,160));
-            JPanel center = new JPanel(new BorderLayout());
+            tickerFilter.setToolTipText("Ticker (blank = all)");
+            fromFilter.setToolTipText("From date, yyyy-MM-dd (blank = start)");
+            toFilter.setToolTipText("To date, yyyy-MM-dd, inclusive (blank = now)");
+            filterBtn.setBorder(new EmptyBorder(8, 20, 8, 20));
+            JPanel filters = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 0));
+            filters.setOpaque(false);
+            filters.add(tickerFilter); filters.add(fromFilter); filters.add(toFilter); filters.add(filterBtn);
+            JPanel center = new JPanel(new BorderLayout(0, 10));
             center.setOpaque(false);
+            center.add(filters, BorderLayout.NORTH);
             center.add(scroll, BorderLayout.CENTER);
             center.add(empty, BorderLayout.SOUTH);
 
-            JPanel box = makeCard(center, 550, 340);
+            JPanel box = makeCard(center, 640, 420);
             add(box, BorderLayout.CENTER);
 
             JPanel nav = new JPanel(new FlowLayout(FlowLayout.LEFT, 25, 0));
             nav.setOpaque(false);
-            nav.add(backBtn);
+            nav.add(backBtn); nav.add(undoToBtn); nav.add(importBtn);
             add(nav, BorderLayout.SOUTH);
 
-            backBtn.addActionListener(e -> cardLayout.show(cardPanel, "menu"));
+            undoToBtn.setToolTipText("Undo the selected transaction and everything after it");
+            undoToBtn.setEnabled(false);
+            list.addListSelectionListener(e -> undoToBtn.setEnabled(list.getSelectedIndex() >= 0 && currentUser!=null && model.showing(currentUser.history)));
+            undoToBtn.addActionListener(e -> {
+                int i = list.getSelectedIndex();
+                if(i < 0 || currentUser==null || !model.showing(currentUser.history)) return;
+                String name = currentUser.username;
+                serve(() -> service.undoFrom(name, i), undone -> undone(HistoryPanel.this, undone));
+            });
+            importBtn.setToolTipText("Import a broker statement: side,ticker,quantity,price[,time] per line");
+            importBtn.addActionListener(e -> importTrades());
+            filterBtn.addActionListener(e -> refresh());
+            backBtn.addActionListener(e -> { tickerFilter.setText(""); fromFilter.setText(""); toFilter.setText(""); cardLayout.show(cardPanel, "menu"); });
         }
         public void refresh() {
-            model.clear();
-            if(currentUser==null||currentUser.history.isEmpty()) {
-                empty.setVisible(true);
-                list.setVisible(false);
-            } else {
-                for(Transaction tx:currentUser.history) model.addElement(tx.toString());
-                empty.setVisible(false);
-                list.setVisible(true);
+            long t0 = System.nanoTime();
+            try {
+                empty.setText("No transactions yet.");
+                if(currentUser==null||currentUser.history.isEmpty()) {
+                    model.setRows(Collections.<Transaction>emptyList());
+                    empty.setVisible(true);
+                    list.setVisible(false);
+                    return;
+                }
+                String t = tickerFilter.getText().trim().toUpperCase();
+                String f = fromFilter.getText().trim(), to = toFilter.getText().trim();
+                java.util.List<Transaction> rows;
+                if(t.isEmpty() && f.isEmpty() && to.isEmpty()) rows = currentUser.history;
+                else try {
+                    rows = currentUser.history.query(t.isEmpty() ? null : t,
+                        f.isEmpty() ? Long.MIN_VALUE : startOfDay(f, 0), to.isEmpty() ? Long.MAX_VALUE : startOfDay(to, 1));
+                } catch(DateTimeException ex) {
+                    model.setRows(Collections.<Transaction>emptyList());
+                    empty.setText("Dates must look like 2025-05-29.");
+                    empty.setVisible(true);
+                    list.setVisible(false);
+                    return;
+                }
+                model.setRows(rows);
+                if(rows.isEmpty()) empty.setText("No matching transactions.");
+                empty.setVisible(rows.isEmpty());
+                list.setVisible(!rows.isEmpty());
+            } finally { Metrics.REFRESH_HISTORY.since(t0); }
+        }
+        // Unfiltered views follow the live history row by row; filtered ones re-query.
+        void appended() {
+            if(currentUser!=null && model.showing(currentUser.history)) { model.appended(); syncEmpty(); }
+            else refresh();
+        }
+        void removedLast() {
+            if(currentUser!=null && model.showing(currentUser.history)) { model.removedLast(); syncEmpty(); }
+            else refresh();
+        }
+        private void syncEmpty() {
+            boolean none = model.getSize()==0;
+            empty.setText("No transactions yet.");
+            empty.setVisible(none);
+            list.setVisible(!none);
+        }
+        // Parsing runs off the EDT; each parsed chunk is validated and applied on the
+        // EDT as one batch, and the account is saved once when the import ends.
+        private void importTrades() {
+            if(currentUser==null) return;
+            JFileChooser fc = new JFileChooser();
+            fc.setFileFilter(new FileNameExtensionFilter("Trade statements (*.csv, *.txt)", "csv", "txt"));
+            if(fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            File f = fc.getSelectedFile();
+            User u = currentUser;
+            AtomicBoolean stop = new AtomicBoolean();
+            JDialog dlg = new JDialog(PortfolioAppOKXAnimated.this, "Importing " + f.getName(), true);
+            JProgressBar bar = new JProgressBar(0, 1000);
+            JLabel status = new JLabel("Starting…");
+            JButton cancel = new JButton("Cancel");
+            cancel.addActionListener(e -> { stop.set(true); cancel.setEnabled(false); });
+            JPanel p = new JPanel(new BorderLayout(0, 10));
+            p.setBorder(new EmptyBorder(16, 18, 16, 18));
+            p.add(status, BorderLayout.NORTH); p.add(bar, BorderLayout.CENTER); p.add(cancel, BorderLayout.SOUTH);
+            dlg.setContentPane(p);
+            dlg.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+            dlg.setSize(420, 150);
+            dlg.setLocationRelativeTo(this);
+            TradeImporter.Report report = new TradeImporter.Report();
+            SwingWorker<Void, long[]> worker = new SwingWorker<Void, long[]>() {
+                protected Void doInBackground() throws Exception {
+                    new TradeImporter().run(f, report,
+                        // A remote import is already off the EDT here, and RemoteService
+                        // hands the mirror update back to the EDT itself.
+                        c -> { if(service instanceof RemoteService) applyImported(u, c); else SwingUtilities.invokeAndWait(() -> applyImported(u, c)); },
+                        (lines, bytes, total) -> publish(new long[]{lines, bytes, total}), stop::get);
+                    return null;
+                }
+                protected void process(java.util.List<long[]> updates) {
+                    long[] last = updates.get(updates.size()-1);
+                    bar.setValue(last[2] > 0 ? (int)(last[1] * 1000 / last[2]) : 0);
+                    status.setText(String.format("%,d lines read, %,d imported", last[0], report.imported));
+                }
+                protected void done() {
+                    dlg.dispose();
+                    String error = null;
+                    try { get(); } catch(Exception ex) { error = ex.getCause()!=null ? ex.getCause().toString() : ex.toString(); }
+                    service.saveSoon();
+                    portfolioPanel.refresh();
+                    refresh();
+                    showImportReport(report, error);
+                }
+            };
+            worker.execute();
+            dlg.setVisible(true);
+        }
+        private void applyImported(User u, TradeImporter.Chunk c) {
+            String[] reasons = service.applyBatch(u.username, c.rows);
+            if(reasons==null) return;
+            for(int i = 0; i < reasons.length; i++) if(reasons[i]!=null) c.reject(i, reasons[i]);
+        }
+        private void showImportReport(TradeImporter.Report r, String error) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%s %,d trades from %,d lines.%n", r.cancelled ? "Cancelled after importing" : "Imported", r.imported, r.lines));
+            if(error!=null) sb.append("Stopped early: ").append(error).append('\n');
+            if(r.rejected > 0) {
+                sb.append(String.format("%,d rows rejected:%n", r.rejected));
+                for(String e : r.errors) sb.append(e).append('\n');
+                if(r.rejected > r.errors.size()) sb.append("…\n");
+            }
+            JTextArea text = new JTextArea(sb.toString(), Math.min(14, 3 + r.errors.size()), 48);
+            text.setEditable(false);
+            JOptionPane.showMessageDialog(this, new JScrollPane(text), "Import", error!=null || r.rejected > 0 ? JOptionPane.WARNING_MESSAGE : JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
+    // Streaming statement import. Each line is side,ticker,quantity,price[,time]; an
+    // optional header line is skipped. Lines are read in chunks, parsed on a small pool
+    // with a bounded number of chunks in flight, and handed to the sink strictly in file
+    // order, so memory stays flat however large the file is.
+    static class TradeImporter {
+        static final int CHUNK = 4096, MAX_ERRORS = 100;
+        static class Chunk {
+            final int firstLine;
+            final String[] lines;
+            final int count;
+            final ArrayList<Transaction> rows = new ArrayList<>();
+            private int[] rowLine = new int[CHUNK];
+            final ArrayList<String> errors = new ArrayList<>();
+            int rejected, refused;
+            Chunk(int firstLine, String[] lines, int count) { this.firstLine = firstLine; this.lines = lines; this.count = count; }
+            void add(Transaction tx, int line) { rowLine[rows.size()] = line; rows.add(tx); }
+            void error(int line, String reason) { rejected++; if(errors.size() < MAX_ERRORS) errors.add("Line " + line + ": " + reason); }
+            // Called by the sink for a parsed row that failed validation.
+            void reject(int row, String reason) { refused++; error(rowLine[row], reason); }
+        }
+        static class Report {
+            volatile long lines, imported, rejected;
+            volatile boolean cancelled;
+            final ArrayList<String> errors = new ArrayList<>();
+        }
+        interface Sink { void accept(Chunk c) throws Exception; }
+        interface Progress { void update(long lines, long bytes, long totalBytes); }
+        static class CountingInput extends FilterInputStream {
+            volatile long count;
+            CountingInput(InputStream in) { super(in); }
+            public int read() throws IOException { int b = super.read(); if(b >= 0) count++; return b; }
+            public int read(byte[] b, int off, int len) throws IOException { int n = super.read(b, off, len); if(n > 0) count += n; return n; }
+        }
+
+        void run(File f, Report report, Sink sink, Progress progress, BooleanSupplier cancelled) throws Exception {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            ExecutorService pool = Executors.newFixedThreadPool(threads, r -> { Thread t = new Thread(r, "import-parser"); t.setDaemon(true); return t; });
+            ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+            long total = f.length();
+            try (CountingInput cin = new CountingInput(new FileInputStream(f));
+                 BufferedReader in = new BufferedReader(new InputStreamReader(cin, java.nio.charset.StandardCharsets.UTF_8), 1 << 16)) {
+                String[] buf = new String[CHUNK];
+                int n = 0, lineNo = 0, first = 1;
+                String line;
+                while((line = in.readLine()) != null) {
+                    buf[n++] = line;
+                    lineNo++;
+                    if(n < CHUNK) continue;
+                    Chunk c = new Chunk(first, buf, n);
+                    inFlight.add(pool.submit(() -> parse(c)));
+                    buf = new String[CHUNK]; n = 0; first = lineNo + 1;
+                    while(inFlight.size() >= threads * 2) drain(inFlight.poll(), report, sink, progress, cin.count, total);
+                    if(cancelled.getAsBoolean()) { report.cancelled = true; break; }
+                }
+                if(!report.cancelled && n > 0) { Chunk c = new Chunk(first, buf, n); inFlight.add(pool.submit(() -> parse(c))); }
+                while(!inFlight.isEmpty()) {
+                    Future<Chunk> next = inFlight.poll();
+                    if(cancelled.getAsBoolean()) { report.cancelled = true; next.cancel(true); continue; }
+                    drain(next, report, sink, progress, cin.count, total);
+                }
+            } finally { pool.shutdownNow(); }
+        }
+        private void drain(Future<Chunk> next, Report report, Sink sink, Progress progress, long bytes, long total) throws Exception {
+            Chunk c;
+            try { c = next.get(); } catch(ExecutionException e) { throw (Exception)e.getCause(); }
+            sink.accept(c);
+            report.lines += c.count;
+            report.imported += c.rows.size() - c.refused;
+            report.rejected += c.rejected;
+            for(String e : c.errors) if(report.errors.size() < MAX_ERRORS) report.errors.add(e);
+            progress.update(report.lines, bytes, total);
+        }
+        static Chunk parse(Chunk c) { return parse(c, true); }
+        // A basket is typed, not exported, so its first line gets no header allowance:
+        // a mistyped side there must fail the basket, not drop the leg.
+        static Chunk basket(String[] lines) { return parse(new Chunk(1, lines, Math.min(lines.length, CHUNK)), false); }
+        static Chunk parse(Chunk c, boolean header) {
+            for(int i = 0; i < c.count; i++) {
+                int lineNo = c.firstLine + i;
+                String line = c.lines[i].trim();
+                c.lines[i] = null;
+                if(line.isEmpty() || line.startsWith("#")) continue;
+                String[] f = split(line);
+                Transaction.Type type = side(f[0]);
+                if(type==null) {
+                    if(!header || lineNo!=1) c.error(lineNo, "Unknown side '" + f[0] + "', expected BUY or SELL.");
+                    continue;
+                }
+                if(f.length < 4 || f[1].isEmpty() || f[2].isEmpty() || f[3].isEmpty()) { c.error(lineNo, "All fields required."); continue; }
+                int q; double price;
+                try { q = Integer.parseInt(f[2]); price = Double.parseDouble(f[3]); }
+                catch(NumberFormatException ex) { c.error(lineNo, "Quantity and price must be valid numbers."); continue; }
+                ZonedDateTime date;
+                try { date = f.length > 4 && !f[4].isEmpty() ? time(f[4]) : ZonedDateTime.now(Transaction.PAK_ZONE); }
+                catch(DateTimeException | NumberFormatException ex) { c.error(lineNo, "Unreadable time '" + f[4] + "'."); continue; }
+                c.add(new Transaction(type, f[1].toUpperCase().intern(), q, price, date), lineNo);
+            }
+            return c;
+        }
+        static Transaction.Type side(String s) {
+            switch(s.toUpperCase()) {
+                case "BUY": case "B": return Transaction.Type.BUY;
+                case "SELL": case "S": return Transaction.Type.SELL;
+                default: return null;
+            }
+        }
+        // Epoch millis, ISO instant/offset, local date-time or date (read as Pakistan time).
+        static ZonedDateTime time(String s) {
+            if(s.chars().allMatch(Character::isDigit)) return Instant.ofEpochMilli(Long.parseLong(s)).atZone(Transaction.PAK_ZONE);
+            if(s.length() == 10) return LocalDate.parse(s).atStartOfDay(Transaction.PAK_ZONE);
+            s = s.replace(' ', 'T');
+            if(s.endsWith("Z") || s.lastIndexOf('+') > 10 || s.lastIndexOf('-') > 10)
+                return OffsetDateTime.parse(s).atZoneSameInstant(Transaction.PAK_ZONE);
+            return LocalDateTime.parse(s).atZone(Transaction.PAK_ZONE);
+        }
+        // Comma split with "quoted, fields"; fields come back trimmed.
+        static String[] split(String line) {
+            ArrayList<String> out = new ArrayList<>(6);
+            StringBuilder cur = new StringBuilder();
+            boolean quoted = false;
+            for(int i = 0; i < line.length(); i++) {
+                char ch = line.charAt(i);
+                if(ch == '"') { if(quoted && i+1 < line.length() && line.charAt(i+1) == '"') { cur.append('"'); i++; } else quoted = !quoted; }
+                else if(ch == ',' && !quoted) { out.add(cur.toString().trim()); cur.setLength(0); }
+                else cur.append(ch);
             }
+            out.add(cur.toString().trim());
+            return out.toArray(new String[0]);
         }
     }
 
-    // Save / load user data to / from a file:
-    private void saveData() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(DATA_FILE))) {
-            oos.writeObject(users);
-        } catch (IOException e) { e.printStackTrace(); }
+    // Write-ahead journal: one CRC-framed record per register/trade/undo, appended
+    // after the change is applied and folded into the snapshot by compaction. A
+    // checkpoint rotates the file aside so appends carry on while segments are written.
+    static class TradeJournal {
+        static final byte REGISTER = 1, BUY = 2, SELL = 3, UNDO = 4, REDO = 5, BASKET = 6, BATCH = 7, COSTING = 8;
+        // A basket is one record, its legs packed into data like BATCH rows, so it costs one
+        // write (and one fsync). Journals from before that carry them in arg as
+        // "B|S ticker qty price" lines, which are still read.
+        // Frames above MAX_RECORD are taken for garbage. A BATCH (one imported chunk, its
+        // rows in data) is the largest record, at about 30 bytes a row.
+        static final int MAX_RECORD = 1 << 24, MAX_LEGS = MAX_RECORD - 1024;
+        static class Record {
+            long seq; byte op; String user, arg; int qty; double price; long millis;
+            byte[] data; // null for records without a payload, and for every older record
+        }
+        private final File file, rotated;
+        private final boolean sync = Boolean.getBoolean("okx.journal.sync");
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream(128);
+        private final DataOutputStream rec = new DataOutputStream(buf);
+        private final CRC32 crc = new CRC32();
+        // Not a monitor: server requests run on virtual threads, and one blocked in a
+        // synchronized write (or fsync) pins its carrier, so every other request waits too.
+        private final ReentrantLock lock = new ReentrantLock();
+        private FileOutputStream out;
+        private long seq, bytes;
+        private int records;
+        TradeJournal(File f) { file = f; rotated = new File(f.getPath() + ".1"); }
+
+        long append(byte op, String user, String arg, int qty, double price, long millis) throws IOException {
+            return append(op, user, arg, qty, price, millis, null);
+        }
+        // The payload goes after the fixed fields, so a record without one reads as before.
+        long append(byte op, String user, String arg, int qty, double price, long millis, byte[] data) throws IOException {
+            lock.lock();
+            try { return write(op, user, arg, qty, price, millis, data); }
+            finally { lock.unlock(); }
+        }
+        private long write(byte op, String user, String arg, int qty, double price, long millis, byte[] data) throws IOException {
+            if(out==null) out = new FileOutputStream(file, true);
+            buf.reset();
+            rec.writeLong(++seq); rec.writeByte(op); rec.writeUTF(user); rec.writeUTF(arg==null ? "" : arg);
+            rec.writeInt(qty); rec.writeDouble(price); rec.writeLong(millis);
+            if(data != null) { rec.writeInt(data.length); rec.write(data); }
+            crc.reset(); crc.update(buf.toByteArray(), 0, buf.size());
+            rec.writeInt((int)crc.getValue());
+            int len = buf.size();
+            byte[] frame = new byte[len + 4];
+            frame[0]=(byte)(len>>>24); frame[1]=(byte)(len>>>16); frame[2]=(byte)(len>>>8); frame[3]=(byte)len;
+            System.arraycopy(buf.toByteArray(), 0, frame, 4, len);
+            out.write(frame);
+            out.flush();
+            if(sync) out.getFD().sync();
+            records++;
+            bytes += frame.length;
+            return seq;
+        }
+        // Replays records with seq > afterSeq, the rotated file first; a torn tail from a
+        // crash is cut off.
+        void replay(long afterSeq, java.util.function.Consumer<Record> apply) throws IOException {
+            lock.lock();
+            try {
+                seq = afterSeq;
+                replay(rotated, apply);
+                replay(file, apply);
+            } finally { lock.unlock(); }
+        }
+        private void replay(File f, java.util.function.Consumer<Record> apply) throws IOException {
+            if(!f.exists()) return;
+            long good = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                while(true) {
+                    int len;
+                    try { len = in.readInt(); } catch(EOFException eof) { break; }
+                    if(len < 4 || len > MAX_RECORD) break;
+                    byte[] body = new byte[len];
+                    try { in.readFully(body); } catch(EOFException eof) { break; }
+                    crc.reset(); crc.update(body, 0, len - 4);
+                    int stored = ((body[len-4]&0xff)<<24)|((body[len-3]&0xff)<<16)|((body[len-2]&0xff)<<8)|(body[len-1]&0xff);
+                    if(stored != (int)crc.getValue()) break;
+                    DataInputStream r = new DataInputStream(new ByteArrayInputStream(body));
+                    Record x = new Record();
+                    x.seq = r.readLong(); x.op = r.readByte(); x.user = r.readUTF(); x.arg = r.readUTF();
+                    x.qty = r.readInt(); x.price = r.readDouble(); x.millis = r.readLong();
+                    if(r.available() > 4) { x.data = new byte[r.readInt()]; r.readFully(x.data); }
+                    good += 4 + len;
+                    if(x.seq <= seq) continue;
+                    apply.accept(x);
+                    seq = x.seq;
+                    records++;
+                    bytes += 4 + len;
+                }
+            }
+            if(good < f.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) { raf.setLength(good); }
+            }
+        }
+        // Older BASKET records only.
+        static java.util.List<Transaction> legs(String arg, long millis) {
+            ZonedDateTime date = Instant.ofEpochMilli(millis).atZone(Transaction.PAK_ZONE);
+            ArrayList<Transaction> out = new ArrayList<>();
+            for(String line : arg.split("\n")) {
+                if(line.isEmpty()) continue;
+                String[] f = line.split(" ");
+                out.add(new Transaction(f[0].equals("B") ? Transaction.Type.BUY : Transaction.Type.SELL, f[1], Integer.parseInt(f[2]), Double.parseDouble(f[3]), date));
+            }
+            return out;
+        }
+        // Whole transactions, each with its own time, for BATCH records.
+        static byte[] rows(java.util.List<Transaction> rows) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(rows.size() * 32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(rows.size());
+            for(Transaction tx : rows) {
+                out.writeByte(tx.type==Transaction.Type.BUY ? 'B' : 'S'); out.writeUTF(tx.ticker);
+                out.writeInt(tx.qty); out.writeDouble(tx.price); out.writeLong(tx.millis());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+        static java.util.List<Transaction> rows(byte[] data) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int n = in.readInt();
+            ArrayList<Transaction> out = new ArrayList<>(n);
+            for(int i = 0; i < n; i++) {
+                Transaction.Type type = in.readByte() == 'B' ? Transaction.Type.BUY : Transaction.Type.SELL;
+                String ticker = in.readUTF();
+                int qty = in.readInt(); double price = in.readDouble();
+                out.add(new Transaction(type, ticker, qty, price, Instant.ofEpochMilli(in.readLong()).atZone(Transaction.PAK_ZONE)));
+            }
+            return out;
+        }
+        long seq() { lock.lock(); try { return seq; } finally { lock.unlock(); } }
+        int records() { lock.lock(); try { return records; } finally { lock.unlock(); } }
+        // Size of the records since the last rotate.
+        long bytes() { lock.lock(); try { return bytes; } finally { lock.unlock(); } }
+        boolean hasRotated() { return rotated.exists(); }
+        // Moves the current file aside and returns the last seq it holds. If an earlier
+        // checkpoint failed its rotated file is still needed, so this one is appended to it.
+        long rotate() throws IOException {
+            lock.lock();
+            try {
+                close();
+                if(file.exists()) {
+                    if(rotated.exists()) {
+                        try (FileOutputStream o = new FileOutputStream(rotated, true)) { Files.copy(file.toPath(), o); o.getFD().sync(); }
+                        Files.delete(file.toPath());
+                    } else Files.move(file.toPath(), rotated.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+                records = 0;
+                bytes = 0;
+                return seq;
+            } finally { lock.unlock(); }
+        }
+        // Called once segments and an index covering every rotated record are durable.
+        void dropRotated() throws IOException { Files.deleteIfExists(rotated.toPath()); }
+        void close() {
+            lock.lock();
+            try {
+                if(out==null) return;
+                try { out.close(); } catch(IOException e) { e.printStackTrace(); }
+                out = null;
+            } finally { lock.unlock(); }
+        }
+    }
+
+    // Epoch millis at the start of a yyyy-MM-dd day (plus some days) in the app's zone.
+    private static long startOfDay(String date, int plusDays) {
+        return LocalDate.parse(date).plusDays(plusDays).atStartOfDay(Transaction.PAK_ZONE).toInstant().toEpochMilli();
+    }
+
+    // Runs a service call, then `done` with its result on the EDT. With --connect each
+    // call is an HTTP round trip, so it goes to a worker; local calls are quick and the
+    // panels expect them applied before the listener returns, so they run inline.
+    private <R> void serve(java.util.function.Supplier<R> call, java.util.function.Consumer<R> done) {
+        if(!(service instanceof RemoteService)) { done.accept(call.get()); return; }
+        new SwingWorker<R, Void>() {
+            protected R doInBackground() { return call.get(); }
+            protected void done() {
+                R r;
+                try { r = get(); }
+                catch (InterruptedException | ExecutionException ex) { ex.printStackTrace(); return; }
+                done.accept(r);
+            }
+        }.execute();
+    }
+
+    // Undo/redo for the signed-in user; each request is one journal record.
+    private void undo(Component parent, int steps) {
+        if(currentUser==null) { undone(parent, Collections.<Transaction>emptyList()); return; }
+        String name = currentUser.username;
+        serve(() -> service.undo(name, steps), undone -> undone(parent, undone));
+    }
+    private void undone(Component parent, java.util.List<Transaction> undone) {
+        if(undone.isEmpty()) { JOptionPane.showMessageDialog(parent, "Nothing to undo.", "Undo", JOptionPane.WARNING_MESSAGE); return; }
+        for(Transaction tx : undone) { portfolioPanel.changed(tx.ticker); historyPanel.removedLast(); }
+        String msg = undone.size()==1 ? "Undid: "+undone.get(0) : "Undid "+undone.size()+" transactions.";
+        JOptionPane.showMessageDialog(parent, msg, "Undo", JOptionPane.INFORMATION_MESSAGE);
+    }
+    private void redo(Component parent) {
+        if(currentUser==null) { redone(parent, Collections.<Transaction>emptyList()); return; }
+        String name = currentUser.username;
+        serve(() -> service.redo(name, 1), redone -> redone(parent, redone));
+    }
+    private void redone(Component parent, java.util.List<Transaction> redone) {
+        if(redone.isEmpty()) { JOptionPane.showMessageDialog(parent, "Nothing to redo.", "Redo", JOptionPane.WARNING_MESSAGE); return; }
+        for(Transaction tx : redone) portfolioPanel.changed(tx.ticker);
+        historyPanel.appended();
+        String msg = redone.size()==1 ? "Redid: "+redone.get(0) : "Redid "+redone.size()+" transactions.";
+        JOptionPane.showMessageDialog(parent, msg, "Redo", JOptionPane.INFORMATION_MESSAGE);
     }
-    private void loadData() {
-        File f = new File(DATA_FILE);
-        if (!f.exists()) return;
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f))) {
-            users = (HashMap<String, User>) ois.readObject();
-        } catch (Exception e) { e.printStackTrace(); }
+
+    // Binary block codec shared by user segments and the old single-file snapshot.
+    static class BinaryStore {
+        static final int MAGIC = 0x4F4B5850; // "OKXP"
+        static final short VERSION = 1;
+        static final int HEADER = 4 + 2 + 8 + 4 + 8;
+        // Block layout: 1 = history plus undo-stack indexes, 2 = full log plus undo cursor,
+        // 3 = the log as whole columns (types, symbols, quantities, fixed-point prices,
+        // times) so it is read with bulk copies, 4 = as 3, with the account's cost method
+        // in the segment header.
+        static final short BLOCK_V1 = 1, BLOCK_V2 = 2, BLOCK_V3 = 3, BLOCK_VERSION = 4;
+        interface BlockVisitor { void visit(String username, String password, ByteBuffer block, long seq) throws IOException; }
+        static class BufferInput extends InputStream {
+            private final ByteBuffer b;
+            BufferInput(ByteBuffer b) { this.b = b; }
+            public int read() { return b.hasRemaining() ? b.get() & 0xff : -1; }
+            public int read(byte[] dst, int off, int len) {
+                if(!b.hasRemaining()) return -1;
+                len = Math.min(len, b.remaining());
+                b.get(dst, off, len);
+                return len;
+            }
+        }
+
+        // Only for files the app never replaces or renames: a mapping stays open until it is
+        // garbage collected, and on Windows a mapped file cannot be moved over.
+        static MappedByteBuffer map(File f) throws IOException {
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+        }
+        // Whole file on the heap, for files that are rewritten in place (user segments).
+        static ByteBuffer read(File f) throws IOException { return ByteBuffer.wrap(Files.readAllBytes(f.toPath())); }
+        // Walks a portfolio_data.bin written before storage was sharded; returns its seq.
+        // Read onto the heap, not mapped: the file is renamed to *.migrated straight after.
+        static long readMonolithic(File f, BlockVisitor v) throws IOException {
+            ByteBuffer map = read(f);
+            ByteBuffer b = map.duplicate();
+            if(b.remaining() < HEADER || b.getInt() != MAGIC) throw new IOException(f + " is not a portfolio data file");
+            short version = b.getShort();
+            if(version != VERSION) throw new IOException("Unsupported data file version " + version);
+            long seq = b.getLong();
+            int count = b.getInt();
+            b.position((int)b.getLong());
+            DataInputStream in = new DataInputStream(new BufferInput(b));
+            for(int i = 0; i < count; i++) {
+                String u = in.readUTF(), p = in.readUTF();
+                int off = (int)in.readLong(), len = in.readInt();
+                ByteBuffer block = map.duplicate();
+                block.position(off).limit(off + len);
+                v.visit(u, p, block.slice(), seq);
+            }
+            return seq;
+        }
+        static void decode(User u, ByteBuffer block, short version) throws IOException {
+            if(version < BLOCK_V1 || version > BLOCK_VERSION) throw new IOException("Unsupported block version " + version);
+            DataInputStream in = new DataInputStream(new BufferInput(block));
+            int[] ids = new int[in.readInt()];
+            for(int i = 0; i < ids.length; i++) ids[i] = Symbols.id(in.readUTF());
+            for(int i = in.readInt(); i > 0; i--) {
+                int sym = ids[in.readInt()];
+                u.portfolio.add(sym, in.readInt());
+            }
+            int n = in.readInt();
+            byte[] types = new byte[n];
+            int[] syms = new int[n], qtys = new int[n];
+            long[] prices = new long[n], times = new long[n];
+            if(version >= BLOCK_V3) {
+                block.get(types);
+                block.asIntBuffer().get(syms); block.position(block.position() + 4*n);
+                block.asIntBuffer().get(qtys); block.position(block.position() + 4*n);
+                block.asLongBuffer().get(prices); block.position(block.position() + 8*n);
+                block.asLongBuffer().get(times); block.position(block.position() + 8*n);
+                for(int i = 0; i < n; i++) syms[i] = ids[syms[i]];
+            } else for(int i = 0; i < n; i++) {
+                types[i] = in.readByte(); syms[i] = ids[in.readInt()]; qtys[i] = in.readInt();
+                prices[i] = HistoryStore.fixed(in.readDouble()); times[i] = in.readLong();
+            }
+            u.history.load(types, syms, qtys, prices, times, n, version == BLOCK_V1 ? n : in.readInt());
+            u.costs = new CostBook(u.costs.method).rebuild(u.history);
+        }
+        static void encode(User.Snapshot u, DataOutputStream out) throws IOException {
+            HistoryStore.Snapshot h = u.history;
+            int n = h.length;
+            int[] local = new int[Symbols.bound()];
+            ArrayList<String> names = new ArrayList<>();
+            for(int sym : u.symbols) if(local[sym] == 0) { names.add(Symbols.name(sym)); local[sym] = names.size(); }
+            for(int i = 0; i < n; i++) { int sym = h.syms[i]; if(local[sym] == 0) { names.add(Symbols.name(sym)); local[sym] = names.size(); } }
+            out.writeInt(names.size());
+            for(String t : names) out.writeUTF(t);
+            out.writeInt(u.symbols.length);
+            for(int i = 0; i < u.symbols.length; i++) { out.writeInt(local[u.symbols[i]] - 1); out.writeInt(u.quantities[i]); }
+            out.writeInt(n);
+            out.write(h.types, 0, n);
+            for(int i = 0; i < n; i++) out.writeInt(local[h.syms[i]] - 1);
+            for(int i = 0; i < n; i++) out.writeInt(h.qtys[i]);
+            for(int i = 0; i < n; i++) out.writeLong(h.prices[i]);
+            for(int i = 0; i < n; i++) out.writeLong(h.times[i]);
+            out.writeInt(h.cursor);
+        }
+    }
+
+    // Firm-wide positions: shares per ticker summed over every account, and over each group
+    // named in -Dokx.groups (default groups.txt: GROUP,user,user,... lines, '#' for
+    // comments). Accounts report the change of every move as they make it, so the totals
+    // are never recounted from holdings; the one exception is load, which adds up the
+    // holdings at the front of each segment in parallel, in the background (an account
+    // decoded before that reaches it is counted from the decoded user). Totals live in pages of atomics
+    // indexed by symbol id, and pages are only ever added, so moves from different
+    // accounts' stripes never wait on each other.
+    static final class Aggregate {
+        static final String ALL = "All accounts";
+        static final int PAGE = 1024;
+        // Per symbol, two longs: shares held, and the number of accounts holding any.
+        static final class Totals {
+            final String name;
+            private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+            Totals(String name) { this.name = name; }
+            void add(int sym, long shares, int holders) {
+                AtomicLongArray p = page(sym);
+                int i = (sym & (PAGE - 1)) * 2;
+                if(shares != 0) p.addAndGet(i, shares);
+                if(holders != 0) p.addAndGet(i + 1, holders);
+            }
+            long get(int sym, int field) {
+                AtomicLongArray[] ps = pages;
+                return sym / PAGE < ps.length ? ps[sym / PAGE].get((sym & (PAGE - 1)) * 2 + field) : 0;
+            }
+            int bound() { return pages.length * PAGE; }
+            AtomicLongArray page(int sym) {
+                AtomicLongArray[] ps = pages;
+                return sym / PAGE < ps.length ? ps[sym / PAGE] : grow(sym / PAGE);
+            }
+            private synchronized AtomicLongArray grow(int k) {
+                AtomicLongArray[] ps = pages;
+                if(k >= ps.length) {
+                    ps = Arrays.copyOf(ps, k + 1);
+                    for(int i = pages.length; i <= k; i++) ps[i] = new AtomicLongArray(PAGE * 2);
+                    pages = ps;
+                }
+                return ps[k];
+            }
+        }
+        static final class Position {
+            final String ticker; final long shares; final int accounts; final double price, value;
+            Position(String ticker, long shares, int accounts, double price) {
+                this.ticker = ticker; this.shares = shares; this.accounts = accounts; this.price = price; value = shares * price;
+            }
+        }
+        // Handed to each decoded User; every holdings change goes through moved().
+        final class Member {
+            private final Totals[] in;
+            Member(Totals[] in) { this.in = in; }
+            // price < 0 for an undo, which leaves the mark alone.
+            void moved(int sym, int before, int after, long price, long millis) {
+                int holders = (after > 0 ? 1 : 0) - (before > 0 ? 1 : 0);
+                if(after != before) for(Totals t : in) t.add(sym, after - before, holders);
+                if(price >= 0) mark(sym, price, millis);
+            }
+        }
+
+        private final Totals all = new Totals(ALL);
+        private final LinkedHashMap<String, Totals> groups = new LinkedHashMap<>();
+        private final HashMap<String, Member> members = new HashMap<>();
+        private final Member ungrouped = new Member(new Totals[] { all });
+        // Latest trade per symbol across accounts: time, then fixed-point price.
+        private final Totals marks = new Totals("marks");
+        Aggregate(String file) {
+            HashMap<String, ArrayList<Totals>> in = new HashMap<>();
+            if(!file.isEmpty() && new File(file).isFile()) {
+                try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+                    for(String line; (line = r.readLine()) != null; ) {
+                        if(line.trim().isEmpty() || line.startsWith("#")) continue;
+                        String[] f = line.split(",");
+                        Totals g = groups.computeIfAbsent(f[0].trim(), Totals::new);
+                        for(int i = 1; i < f.length; i++) {
+                            if(f[i].trim().isEmpty()) continue;
+                            ArrayList<Totals> of = in.computeIfAbsent(f[i].trim(), k -> new ArrayList<>(Collections.singletonList(all)));
+                            if(!of.contains(g)) of.add(g);
+                        }
+                    }
+                } catch (IOException e) { e.printStackTrace(); }
+            }
+            for(Map.Entry<String, ArrayList<Totals>> e : in.entrySet()) members.put(e.getKey(), new Member(e.getValue().toArray(new Totals[0])));
+        }
+        Member member(String username) { return members.getOrDefault(username, ungrouped); }
+        java.util.List<String> groups() {
+            ArrayList<String> out = new ArrayList<>();
+            out.add(ALL);
+            out.addAll(groups.keySet());
+            return out;
+        }
+        // Newest trade wins (the higher price within one millisecond), whatever order
+        // accounts are replayed or reloaded in.
+        void mark(int sym, long price, long millis) {
+            AtomicLongArray p = marks.page(sym);
+            int i = (sym & (PAGE - 1)) * 2;
+            synchronized(p) {
+                long t = p.get(i);
+                if(millis > t || millis == t && price > p.get(i + 1)) { p.set(i, millis); p.set(i + 1, price); }
+            }
+        }
+        // Every ticker the group holds, largest value first: one pass over the symbol ids.
+        // Valued at the live price when a feed has one, else at the latest trade price.
+        java.util.List<Position> positions(String group) {
+            Totals t = group == null || group.equals(ALL) ? all : groups.get(group);
+            ArrayList<Position> out = new ArrayList<>();
+            if(t == null) return out;
+            MarketData feed = MarketData.feed();
+            for(int sym = 0, n = t.bound(); sym < n; sym++) {
+                long shares = t.get(sym, 0);
+                if(shares == 0) continue;
+                long live = feed == null ? 0 : feed.price(sym), px = live > 0 ? live : marks.get(sym, 1);
+                out.add(new Position(Symbols.name(sym), shares, (int)t.get(sym, 1), (double)px / HistoryStore.PRICE_SCALE));
+            }
+            out.sort((a, b) -> a.value != b.value ? Double.compare(b.value, a.value) : a.ticker.compareTo(b.ticker));
+            return out;
+        }
+        // Load: the holdings table at the front of a segment, plus, for the columnar layout,
+        // the latest applied trade of each of its tickers (held or not, as a live trade would
+        // have marked it), found by walking the symbol column back from the undo cursor.
+        // Everything is read with positional reads, never mapped (the segment is rewritten
+        // by later saves): the first 64 KB for the holdings, the symbol column a block at a
+        // time, and 16 bytes per ticker for its price and time. Most segments fit in the
+        // first read, and are then served from it.
+        void add(String username, File f) throws IOException {
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                long size = ch.size();
+                ByteBuffer head = read(ch, null, 0, (int)Math.min(size, 1 << 16)), whole = size <= 1 << 16 ? head : null;
+                Prefix p;
+                try { p = prefix(head.duplicate()); }
+                catch (EOFException | BufferUnderflowException longer) { p = prefix(read(ch, null, 0, (int)size)); }
+                Member m = member(username);
+                for(int i = 0; i < p.held.length; i++) m.moved(p.ids[p.held[i]], 0, p.qty[i], -1, 0);
+                if(p.version < BinaryStore.BLOCK_V3) return;
+                int n = p.n, left = p.ids.length;
+                long syms = p.base + n, prices = syms + 8L * n, times = prices + 8L * n;
+                int cursor = read(ch, whole, times + 8L * n, 4).getInt(0);
+                boolean[] seen = new boolean[p.ids.length];
+                for(int end = cursor; end > 0 && left > 0; ) {
+                    int start = Math.max(0, end - 4096);
+                    ByteBuffer col = read(ch, whole, syms + 4L * start, 4 * (end - start));
+                    for(int i = end - 1; i >= start && left > 0; i--) {
+                        int local = col.getInt(4 * (i - start));
+                        if(seen[local]) continue;
+                        seen[local] = true; left--;
+                        mark(p.ids[local], read(ch, whole, prices + 8L * i, 8).getLong(0), read(ch, whole, times + 8L * i, 8).getLong(0));
+                    }
+                    end = start;
+                }
+            }
+        }
+        // What add() needs from the front of a segment; base is the file offset of the
+        // history columns, which start with the n type bytes.
+        private static final class Prefix {
+            short version; int[] ids, held, qty; int n; long base;
+        }
+        private static Prefix prefix(ByteBuffer b) throws IOException {
+            Prefix p = new Prefix();
+            if(b.getInt() != UserStore.SEGMENT_MAGIC) throw new IOException("not a user segment");
+            p.version = b.getShort();
+            b.getLong();
+            if(p.version >= BinaryStore.BLOCK_VERSION) b.get(); // cost method
+            int header = b.position();
+            ByteBuffer block = b.slice();
+            DataInputStream in = new DataInputStream(new BinaryStore.BufferInput(block));
+            p.ids = new int[in.readInt()];
+            for(int i = 0; i < p.ids.length; i++) p.ids[i] = Symbols.id(in.readUTF());
+            int count = in.readInt();
+            p.held = new int[count]; p.qty = new int[count];
+            for(int i = 0; i < count; i++) { p.held[i] = in.readInt(); p.qty[i] = in.readInt(); }
+            if(p.version >= BinaryStore.BLOCK_V3) { p.n = in.readInt(); p.base = header + block.position(); }
+            return p;
+        }
+        // An account decoded before the index read its segment: the same holdings, and the
+        // latest trade of each ticker, taken from the decoded user instead.
+        void add(String username, User u) {
+            Member m = member(username);
+            for(int sym : u.portfolio.symbols()) m.moved(sym, 0, u.portfolio.get(sym), -1, 0);
+            HistoryStore h = u.history;
+            boolean[] seen = new boolean[Symbols.bound()];
+            for(int i = h.size() - 1; i >= 0; i--) {
+                int sym = h.symbol(i);
+                if(seen[sym]) continue;
+                seen[sym] = true;
+                mark(sym, h.fixedPrice(i), h.millis(i));
+            }
+        }
+        // len bytes at file offset at, from whole when the file has already been read.
+        private static ByteBuffer read(FileChannel ch, ByteBuffer whole, long at, int len) throws IOException {
+            if(whole != null) {
+                if(at + len > whole.capacity()) throw new EOFException("segment ends early");
+                ByteBuffer b = whole.duplicate();
+                b.limit((int)at + len).position((int)at);
+                return b.slice();
+            }
+            ByteBuffer b = ByteBuffer.allocate(len);
+            while(b.hasRemaining()) if(ch.read(b, at + b.position()) < 0) throw new EOFException("segment ends early");
+            b.flip();
+            return b;
+        }
+    }
+
+    // Sharded storage: an index of credentials plus one segment file per user.
+    // Only a bounded LRU set of users is decoded; dirty ones are written back on eviction.
+    // A user is only read or changed while holding its lock stripe; the cache map has its
+    // own short lock, and eviction skips users whose stripe is busy.
+    static class UserStore {
+        static final int INDEX_MAGIC = 0x4F4B5849;   // "OKXI"
+        static final int SEGMENT_MAGIC = 0x4F4B5855; // "OKXU"
+        static final short VERSION = 1;
+        static final int STRIPES = 64;
+        static class Account {
+            final int id; final String username, password;
+            boolean counted; // saved holdings are in the aggregate; guarded by the user's stripe
+            Account(int id, String username, String password) { this.id=id; this.username=username; this.password=password; }
+        }
+        private final File dir, index, segments;
+        private final int capacity;
+        private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+        private final LinkedHashMap<String, User> cache = new LinkedHashMap<>(16, 0.75f, true);
+        private final Set<String> pinned = ConcurrentHashMap.newKeySet();
+        private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+        private final AtomicInteger nextId = new AtomicInteger(1);
+        private final AtomicBoolean writeBackQueued = new AtomicBoolean();
+        private volatile long seq;
+        // Where dirty users dropped from the cache get written; the service hands this to its
+        // saver thread so a login or trade on the EDT never waits on a segment write.
+        volatile Executor writeBack = Runnable::run;
+        final Aggregate aggregate = new Aggregate(System.getProperty("okx.groups", "groups.txt"));
+        UserStore(File dir, int capacity) {
+            this.dir = dir; this.capacity = Math.max(1, capacity);
+            index = new File(dir, "index.bin"); segments = new File(dir, "users");
+            for(int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+        }
+        ReentrantLock lockFor(String username) {
+            int h = username.hashCode();
+            return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+        }
+
+        boolean exists() { return index.exists(); }
+        long seq() { return seq; }
+        boolean contains(String username) { return accounts.containsKey(username); }
+        Account account(String username) { return accounts.get(username); }
+        Account authenticate(String username, String password) {
+            Account a = accounts.get(username);
+            return a!=null && a.password.equals(password) ? a : null;
+        }
+        Collection<Account> accounts() { return accounts.values(); }
+        void pin(User u) { pinned.add(u.username); }
+        void unpin(User u) { if(u!=null) pinned.remove(u.username); evict(false); }
+        void touched(User u, long seq) { u.seq = seq; u.dirty = true; }
+
+        // id <= 0 allocates a fresh one; replay passes the id the journal recorded.
+        // Returns null if the name is already taken.
+        User register(String username, String password, int id) {
+            if(id <= 0) id = nextId.getAndIncrement();
+            else nextId.accumulateAndGet(id + 1, Math::max);
+            Account a = new Account(id, username, password);
+            a.counted = true; // nothing saved yet
+            if(accounts.putIfAbsent(username, a) != null) return null;
+            User u = new User(username, password);
+            u.dirty = true;
+            u.aggregate = aggregate.member(username);
+            synchronized(cache) { cache.put(username, u); }
+            evict(false);
+            return u;
+        }
+        // Caller holds lockFor(username), so no other thread loads or evicts this user.
+        User get(String username) throws IOException {
+            if(!lockFor(username).isHeldByCurrentThread()) throw new IllegalStateException("lock for " + username + " not held");
+            User u;
+            synchronized(cache) { u = cache.get(username); }
+            if(u!=null) return u;
+            Account a = accounts.get(username);
+            if(a==null) return null;
+            long t0 = System.nanoTime();
+            u = new User(a.username, a.password);
+            File f = segment(a);
+            if(f.exists()) decodeSegment(u, BinaryStore.read(f));
+            if(!a.counted) { aggregate.add(username, u); a.counted = true; }
+            u.aggregate = aggregate.member(username);
+            Metrics.LOAD_USER.since(t0);
+            synchronized(cache) { cache.put(username, u); }
+            evict(false);
+            return u;
+        }
+        // Drops clean users over capacity straight away. Dirty ones are only written when
+        // write is set; otherwise one pass that writes them is queued on writeBack, and they
+        // stay cached (and saved by flush) until it runs.
+        private void evict(boolean write) {
+            if(write) writeBackQueued.set(false);
+            boolean queue = false;
+            ArrayList<User> over = new ArrayList<>();
+            synchronized(cache) {
+                int excess = cache.size() - capacity;
+                for(Iterator<User> it = cache.values().iterator(); excess > 0 && it.hasNext(); ) {
+                    User u = it.next();
+                    if(!pinned.contains(u.username)) { over.add(u); excess--; }
+                }
+            }
+            for(User u : over) {
+                ReentrantLock l = lockFor(u.username);
+                if(!l.tryLock()) continue; // in use; a later eviction picks it up
+                try {
+                    if(pinned.contains(u.username) || u.saving) continue;
+                    if(u.dirty) {
+                        if(!write) { queue = true; continue; }
+                        writeSegment(u.snapshot()); u.dirty = false;
+                    }
+                    synchronized(cache) { cache.remove(u.username, u); }
+                } catch (IOException e) { e.printStackTrace(); return; }
+                finally { l.unlock(); }
+            }
+            if(queue && writeBackQueued.compareAndSet(false, true)) writeBack.execute(() -> evict(true));
+        }
+        // Writes every dirty cached user, then the index stamped with seq. Anything up to
+        // seq is either in a cached user or was written when that user was evicted. Each
+        // user is locked only while its snapshot is taken; encoding and the write happen
+        // outside the lock, so trades carry on while a save is running.
+        void flush(long seq) throws IOException {
+            ArrayList<User> cached;
+            synchronized(cache) { cached = new ArrayList<>(cache.values()); }
+            for(User u : cached) {
+                ReentrantLock l = lockFor(u.username);
+                User.Snapshot snap;
+                l.lock();
+                try {
+                    if(!u.dirty) continue;
+                    snap = u.snapshot();
+                    u.dirty = false;
+                    u.saving = true;
+                } finally { l.unlock(); }
+                boolean written = false;
+                try { writeSegment(snap); written = true; }
+                finally {
+                    l.lock();
+                    try { u.saving = false; if(!written) u.dirty = true; }
+                    finally { l.unlock(); }
+                }
+            }
+            commitImport(seq);
+        }
+        boolean hasDirty() {
+            synchronized(cache) {
+                for(User u : cache.values()) if(u.dirty) return true;
+            }
+            return false;
+        }
+
+        void open() throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+                if(in.readInt() != INDEX_MAGIC) throw new IOException(index + " is not a portfolio index");
+                short version = in.readShort();
+                if(version != VERSION) throw new IOException("Unsupported index version " + version);
+                seq = in.readLong();
+                nextId.set(in.readInt());
+                for(int n = in.readInt(); n > 0; n--) {
+                    Account a = new Account(in.readInt(), in.readUTF(), in.readUTF());
+                    accounts.put(a.username, a);
+                }
+            }
+        }
+        // Counts every account's saved holdings into the aggregate, accounts in parallel.
+        // Runs in the background while accounts sign in and the journal replays, so each
+        // account is counted under its stripe, once: here from the segment, or by get()
+        // from the decoded user if that came first. A segment is only rewritten after its
+        // user was decoded, so the one read here never includes moves already counted.
+        void indexHoldings() {
+            accounts.values().parallelStream().forEach(a -> {
+                ReentrantLock l = lockFor(a.username);
+                l.lock();
+                try {
+                    if(a.counted) return;
+                    File f = segment(a);
+                    if(f.exists()) aggregate.add(a.username, f);
+                    a.counted = true;
+                } catch (IOException e) { e.printStackTrace(); }
+                finally { l.unlock(); }
+            });
+        }
+        // Migration: adopt a decoded user, or an undecoded block from the old single file.
+        void importUser(User u, long seq) throws IOException {
+            register(u.username, u.password, 0);
+            accounts.get(u.username).counted = false; // counted from the segment below by the index
+            synchronized(cache) { cache.remove(u.username); }
+            u.seq = seq;
+            writeSegment(u.snapshot());
+        }
+        void importBlock(String username, String password, ByteBuffer block, long seq) throws IOException {
+            Account a = new Account(nextId.getAndIncrement(), username, password);
+            accounts.put(username, a);
+            byte[] raw = new byte[block.remaining()];
+            block.get(raw);
+            writeAtomically(segment(a), out -> {
+                out.writeInt(SEGMENT_MAGIC); out.writeShort(BinaryStore.BLOCK_V1); out.writeLong(seq);
+                out.write(raw);
+            });
+        }
+        synchronized void commitImport(long seq) throws IOException { this.seq = seq; writeIndex(); }
+
+        private File segment(Account a) { return new File(segments, String.format("%08d.bin", a.id)); }
+        private void writeSegment(User.Snapshot u) throws IOException {
+            writeAtomically(segment(accounts.get(u.username)), out -> encodeSegment(u, out));
+        }
+        // A segment is the header plus one block; the server also sends it to clients as is.
+        // Segments older than BLOCK_VERSION have no cost method and get CostBook.DEFAULT.
+        static void encodeSegment(User.Snapshot u, DataOutputStream out) throws IOException {
+            out.writeInt(SEGMENT_MAGIC); out.writeShort(BinaryStore.BLOCK_VERSION); out.writeLong(u.seq);
+            out.writeByte(u.costing.ordinal());
+            BinaryStore.encode(u, out);
+        }
+        static void decodeSegment(User u, ByteBuffer b) throws IOException {
+            if(b.getInt() != SEGMENT_MAGIC) throw new IOException("not a user segment");
+            short version = b.getShort();
+            u.seq = b.getLong();
+            if(version >= BinaryStore.BLOCK_VERSION) {
+                int m = b.get();
+                if(m < 0 || m >= CostBook.Method.values().length) throw new IOException("Unknown cost method " + m);
+                u.costs = new CostBook(CostBook.Method.values()[m]);
+            }
+            BinaryStore.decode(u, b.slice(), version);
+        }
+        private void writeIndex() throws IOException {
+            writeAtomically(index, out -> {
+                out.writeInt(INDEX_MAGIC); out.writeShort(VERSION); out.writeLong(seq);
+                ArrayList<Account> all = new ArrayList<>(accounts.values());
+                out.writeInt(nextId.get()); out.writeInt(all.size());
+                for(Account a : all) { out.writeInt(a.id); out.writeUTF(a.username); out.writeUTF(a.password); }
+            });
+        }
+        interface Writer { void write(DataOutputStream out) throws IOException; }
+        private void writeAtomically(File f, Writer w) throws IOException {
+            f.getParentFile().mkdirs();
+            File tmp = new File(f.getPath() + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+                w.write(out);
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // Headless trading engine behind the Swing panels. Calls for one user run under that
+    // user's lock stripe; calls for different users run in parallel and only meet at the
+    // journal append. Every segment and the index record the journal seq they cover, so
+    // records already folded into them are skipped on replay.
+    static class PortfolioService {
+        static final String DATA_DIR = "portfolio_data";
+        static final String MONOLITHIC_FILE = "portfolio_data.bin";
+        static final String LEGACY_FILE = "portfolio_data.ser";
+        static final String JOURNAL_FILE = "portfolio_data.journal";
+        // The journal already makes every change durable, and a checkpoint rewrites each
+        // dirty account's whole segment, so one only runs once the journal is big enough
+        // to slow a restart, or its oldest record is old enough.
+        static final long JOURNAL_MAX_BYTES = Long.getLong("okx.journal.maxbytes", 8L << 20);
+        static final long JOURNAL_MAX_MILLIS = 1000L * Integer.getInteger("okx.journal.maxage", 600);
+        // A trade either produces its transaction or the reason it was refused.
+        static class Result {
+            final Transaction tx; final String error;
+            Result(Transaction tx, String error) { this.tx=tx; this.error=error; }
+        }
+        final UserStore users;
+        private final File dir;
+        private final TradeJournal journal;
+        private final ReentrantLock checkpointing = new ReentrantLock();
+        // load() may run on its own thread. It opens the account table, reads the journal,
+        // then replays it; each user's latch opens after that user's last record, so a
+        // sign-in waits only for its own data.
+        private final CountDownLatch accountsReady = new CountDownLatch(1), journalRead = new CountDownLatch(1), loaded = new CountDownLatch(1);
+        // Opens once every saved account's holdings are in the firm totals (okx-index).
+        private final CountDownLatch indexed = new CountDownLatch(1);
+        private final ConcurrentHashMap<String, CountDownLatch> replaying = new ConcurrentHashMap<>();
+        // Saves run on one background thread: JOURNAL_MAX_MILLIS after the first change since
+        // the last save, or straight away once the journal reaches JOURNAL_MAX_BYTES. The
+        // write-back of dirty accounts dropped from the cache runs there too.
+        private final ScheduledThreadPoolExecutor saver = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "okx-autosave");
+            t.setDaemon(true);
+            return t;
+        });
+        private final AtomicBoolean saveQueued = new AtomicBoolean(), compactQueued = new AtomicBoolean();
+        PortfolioService(File dir) {
+            this.dir = dir;
+            users = new UserStore(new File(dir, DATA_DIR), Integer.getInteger("okx.cache.users", 64));
+            journal = new TradeJournal(new File(dir, JOURNAL_FILE));
+            saver.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            // Once the saver has stopped, close()'s checkpoint writes what is still dirty.
+            users.writeBack = r -> {
+                try { saver.execute(r); } catch (RejectedExecutionException stopped) {}
+            };
+        }
+
+        // The store in dir, or a client of the server named by -Dokx.server=host:port.
+        static PortfolioService open(File dir) {
+            String server = System.getProperty("okx.server");
+            return server == null ? new PortfolioService(dir) : new RemoteService(server);
+        }
+
+        void load() {
+            long t0 = System.nanoTime();
+            File mono = new File(dir, MONOLITHIC_FILE), legacy = new File(dir, LEGACY_FILE);
+            ArrayList<TradeJournal.Record> records = new ArrayList<>();
+            boolean indexing = false;
+            try {
+                try {
+                    if (users.exists()) users.open();
+                    else if (mono.exists()) { users.commitImport(BinaryStore.readMonolithic(mono, users::importBlock)); retire(mono); }
+                    else if (legacy.exists()) { migrateLegacy(legacy); retire(legacy); }
+                } catch (IOException e) { e.printStackTrace(); }
+                // Only the index is needed to sign in; the firm totals fill in behind.
+                Thread index = new Thread(() -> {
+                    try { users.indexHoldings(); }
+                    finally { indexed.countDown(); }
+                }, "okx-index");
+                index.setDaemon(true);
+                index.start();
+                indexing = true;
+                accountsReady.countDown();
+                StartupTimer.mark("accounts loaded");
+                try { journal.replay(users.seq(), records::add); }
+                catch (IOException e) { e.printStackTrace(); }
+                HashMap<String, Integer> last = new HashMap<>();
+                for(int i = 0; i < records.size(); i++) {
+                    last.put(records.get(i).user, i);
+                    replaying.putIfAbsent(records.get(i).user, new CountDownLatch(1));
+                }
+                journalRead.countDown();
+                StartupTimer.mark("journal read");
+                for(int i = 0; i < records.size(); i++) {
+                    TradeJournal.Record r = records.get(i);
+                    replay(r);
+                    if(last.get(r.user) == i) replaying.remove(r.user).countDown();
+                }
+            } finally {
+                if(!indexing) indexed.countDown();
+                accountsReady.countDown();
+                journalRead.countDown();
+                for(CountDownLatch l : replaying.values()) l.countDown();
+                loaded.countDown();
+            }
+            StartupTimer.mark("data loaded");
+            Metrics.LOAD.since(t0);
+            if (journal.hasRotated()) checkpoint();
+        }
+        boolean isLoaded() { return loaded.getCount() == 0; }
+        // The firm totals cover every account: loaded, and every segment counted.
+        boolean isIndexed() { return isLoaded() && indexed.getCount() == 0; }
+        void awaitLoaded() throws InterruptedException { loaded.await(); }
+        // Returns once the account table and every journal record for username are in.
+        void awaitUser(String username) throws InterruptedException {
+            accountsReady.await();
+            journalRead.await();
+            CountDownLatch l = replaying.get(username);
+            if(l != null) l.await();
+        }
+        // Loads and pins the account; null on bad credentials.
+        User login(String username, String password) throws IOException {
+            try { awaitUser(username); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new InterruptedIOException("interrupted while loading"); }
+            if(users.authenticate(username, password) == null) return null;
+            ReentrantLock l = users.lockFor(username);
+            l.lock();
+            try {
+                User u = users.get(username);
+                users.pin(u);
+                return u;
+            } finally { l.unlock(); }
+        }
+        void logout(User u) { users.unpin(u); }
+        // False if the name is taken. Waits for the full load, since the name may only
+        // appear further on in the journal.
+        boolean register(String username, String password) {
+            try { awaitLoaded(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); return false; }
+            ReentrantLock l = users.lockFor(username);
+            l.lock();
+            try {
+                User u = users.register(username, password, 0);
+                if(u == null) return false;
+                log(TradeJournal.REGISTER, u, password, users.account(username).id, 0, 0);
+            } finally { l.unlock(); }
+            changed();
+            return true;
+        }
+        Result trade(String username, Transaction.Type type, String ticker, int qty, double price) {
+            long t0 = System.nanoTime();
+            String unknown = unknown(type, ticker);
+            if(unknown != null) return new Result(null, unknown);
+            Result r = withUser(username, u -> {
+                String rejected = u.check(type, ticker, qty, price);
+                if(rejected != null) return new Result(null, rejected);
+                Transaction tx = new Transaction(type, ticker, qty, price);
+                u.apply(tx);
+                log(type==Transaction.Type.BUY ? TradeJournal.BUY : TradeJournal.SELL, u, ticker, qty, price, tx.millis());
+                return new Result(tx, null);
+            });
+            changed();
+            Metrics.TRADE.since(t0);
+            return r != null ? r : new Result(null, "Unknown user.");
+        }
+        // All legs share one time and one journal record, written only once every leg has
+        // passed. On success tx is the first leg, carrying that time.
+        Result basket(String username, java.util.List<Transaction> legs) {
+            long t0 = System.nanoTime();
+            for(int i = 0; i < legs.size(); i++) {
+                Transaction tx = legs.get(i);
+                String unknown = unknown(tx.type, tx.ticker);
+                if(unknown != null) return new Result(null, "Leg " + (i+1) + " (" + tx.type + " " + tx.ticker + "): " + unknown);
+            }
+            ZonedDateTime now = ZonedDateTime.now(Transaction.PAK_ZONE);
+            ArrayList<Transaction> stamped = new ArrayList<>(legs.size());
+            for(Transaction tx : legs) stamped.add(new Transaction(tx.type, tx.ticker, tx.qty, tx.price, now));
+            byte[] data;
+            try { data = TradeJournal.rows(stamped); }
+            catch (IOException e) { return new Result(null, "Basket could not be recorded: " + e.getMessage()); }
+            if(data.length > TradeJournal.MAX_LEGS) return new Result(null, "Basket is too large.");
+            String[] rejected = new String[1];
+            User u = withUser(username, x -> {
+                rejected[0] = x.applyBasket(stamped);
+                if(rejected[0] == null) log(TradeJournal.BASKET, x, null, stamped.size(), 0, now.toInstant().toEpochMilli(), data);
+                return x;
+            });
+            changed();
+            Metrics.BASKET.since(t0);
+            if(u == null) return new Result(null, "Unknown user.");
+            return rejected[0] != null ? new Result(null, rejected[0]) : new Result(stamped.get(0), null);
+        }
+        // Each call is one journal record however many steps it covers.
+        java.util.List<Transaction> undo(String username, int steps) {
+            long t0 = System.nanoTime();
+            java.util.List<Transaction> undone = withUser(username, u -> {
+                java.util.List<Transaction> done = u.undo(steps);
+                if(!done.isEmpty()) log(TradeJournal.UNDO, u, null, done.size(), 0, 0);
+                return done;
+            });
+            changed();
+            Metrics.UNDO.since(t0);
+            return undone != null ? undone : Collections.<Transaction>emptyList();
+        }
+        // Undoes history entry `from` and everything after it, as one record of entries.
+        java.util.List<Transaction> undoFrom(String username, int from) {
+            long t0 = System.nanoTime();
+            java.util.List<Transaction> undone = withUser(username, u -> {
+                java.util.List<Transaction> done = u.undoEntries(u.history.undoSpanFrom(from));
+                if(!done.isEmpty()) log(TradeJournal.UNDO, u, null, done.size(), 0, 0);
+                return done;
+            });
+            changed();
+            Metrics.UNDO.since(t0);
+            return undone != null ? undone : Collections.<Transaction>emptyList();
+        }
+        java.util.List<Transaction> redo(String username, int steps) {
+            long t0 = System.nanoTime();
+            java.util.List<Transaction> redone = withUser(username, u -> {
+                java.util.List<Transaction> done = u.redo(steps);
+                if(!done.isEmpty()) log(TradeJournal.REDO, u, null, done.size(), 0, 0);
+                return done;
+            });
+            changed();
+            Metrics.REDO.since(t0);
+            return redone != null ? redone : Collections.<Transaction>emptyList();
+        }
+        // The rows that pass go into the journal as one BATCH record, written under the
+        // account's lock like a basket, so trades and undos after an import replay against
+        // the same history.
+        String[] applyBatch(String username, java.util.List<Transaction> rows) {
+            String[] unknown = new String[rows.size()];
+            ArrayList<Transaction> known = new ArrayList<>(rows.size());
+            for(int i = 0; i < unknown.length; i++) {
+                Transaction tx = rows.get(i);
+                if((unknown[i] = unknown(tx.type, tx.ticker)) == null) known.add(tx);
+            }
+            String[] reasons = withUser(username, u -> {
+                String[] r = u.applyBatch(known);
+                ArrayList<Transaction> applied = new ArrayList<>(known.size());
+                for(int i = 0; i < r.length; i++) if(r[i] == null) applied.add(known.get(i));
+                if(!applied.isEmpty()) {
+                    try { log(TradeJournal.BATCH, u, null, applied.size(), 0, 0, TradeJournal.rows(applied)); }
+                    catch (IOException e) { e.printStackTrace(); u.dirty = true; }
+                }
+                return r;
+            });
+            changed();
+            if(reasons == null || known.size() == rows.size()) return reasons;
+            for(int i = 0, k = 0; i < unknown.length; i++) if(unknown[i] == null) unknown[i] = reasons[k++];
+            return unknown;
+        }
+        // Buys must name a ticker in the symbol master. Sells are held to what the account
+        // holds, so positions opened before the master was in place can still be closed.
+        // Journal replay skips this, so the file cannot change what was already accepted.
+        static String unknown(Transaction.Type type, String ticker) {
+            return type == Transaction.Type.BUY && !SymbolMaster.get().accepts(ticker) ? "Unknown ticker " + ticker + "." : null;
+        }
+        // Saved with the account, and journaled so a crash before the next save keeps it.
+        void costing(String username, CostBook.Method method) {
+            withUser(username, u -> {
+                if(method == u.costs.method) return u;
+                u.costing(method);
+                log(TradeJournal.COSTING, u, method.name(), 0, 0, 0);
+                return u;
+            });
+            changed();
+        }
+        // Copies taken under the user's lock, safe to hand to another thread.
+        Map<String, Integer> holdings(String username) {
+            Map<String, Integer> m = withUser(username, u -> {
+                TreeMap<String, Integer> out = new TreeMap<>();
+                for(int sym : u.portfolio.symbols()) out.put(Symbols.name(sym), u.portfolio.get(sym));
+                return out;
+            });
+            return m != null ? m : Collections.<String, Integer>emptyMap();
+        }
+        // Shares per ticker over every account or one group; complete once load and the
+        // holdings index are done.
+        java.util.List<Aggregate.Position> aggregate(String group) {
+            try { awaitLoaded(); indexed.await(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); return Collections.emptyList(); }
+            return users.aggregate.positions(group);
+        }
+        java.util.List<String> groups() { return users.aggregate.groups(); }
+        Map<String, Integer> holdingsAt(String username, long millis) {
+            Map<String, Integer> m = withUser(username, u -> u.history.holdingsAt(millis));
+            return m != null ? m : Collections.<String, Integer>emptyMap();
+        }
+        java.util.List<Transaction> history(String username, String ticker, long from, long to) {
+            java.util.List<Transaction> h = withUser(username, u -> new ArrayList<>(u.history.query(ticker, from, to)));
+            return h != null ? h : Collections.<Transaction>emptyList();
+        }
+        // Runs f with the user locked; null if there is no such account.
+        <R> R withUser(String username, java.util.function.Function<User, R> f) {
+            try { awaitUser(username); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); return null; }
+            ReentrantLock l = users.lockFor(username);
+            l.lock();
+            try {
+                User u = users.get(username);
+                return u == null ? null : f.apply(u);
+            } catch (IOException e) { e.printStackTrace(); return null; }
+            finally { l.unlock(); }
+        }
+
+        // Rotates the journal, writes every dirty user and the index, then drops the
+        // rotated file. Trades keep appending to the new journal meanwhile. Not before
+        // the load is done: the rotated file may hold records not yet replayed.
+        void checkpoint() {
+            try { awaitLoaded(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); return; }
+            checkpointing.lock();
+            try {
+                if(journal.records() == 0 && !journal.hasRotated() && !users.hasDirty()) return;
+                long t0 = System.nanoTime();
+                users.flush(journal.rotate());
+                journal.dropRotated();
+                Metrics.SAVE.since(t0);
+            } catch (IOException e) { e.printStackTrace(); }
+            finally { checkpointing.unlock(); }
+        }
+        // Queues an immediate background save.
+        void saveSoon() {
+            if(compactQueued.compareAndSet(false, true)) saver.execute(this::autosave);
+        }
+        // Lets a running save finish and drops any queued ones.
+        void stopAutosave() {
+            saver.shutdown();
+            try { saver.awaitTermination(1, TimeUnit.MINUTES); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+        void close() {
+            stopAutosave();
+            checkpoint();
+            journal.close();
+        }
+        private void changed() {
+            if(saver.isShutdown()) return;
+            if(journal.bytes() >= JOURNAL_MAX_BYTES) saveSoon();
+            else if(saveQueued.compareAndSet(false, true)) saver.schedule(this::autosave, JOURNAL_MAX_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        private void autosave() {
+            saveQueued.set(false);
+            compactQueued.set(false);
+            checkpoint();
+        }
+        // Called with the user's stripe held, so journal order matches apply order per user.
+        private void log(byte op, User u, String arg, int qty, double price, long millis) {
+            log(op, u, arg, qty, price, millis, null);
+        }
+        private void log(byte op, User u, String arg, int qty, double price, long millis, byte[] data) {
+            try { users.touched(u, journal.append(op, u.username, arg, qty, price, millis, data)); }
+            catch (IOException e) { e.printStackTrace(); u.dirty = true; }
+        }
+        // REGISTER records carry the account id in qty so replay recreates the same segment name.
+        // A record that cannot be applied is reported and skipped; the rest of the journal,
+        // for this account and every other, still replays.
+        private void replay(TradeJournal.Record r) {
+            ReentrantLock l = users.lockFor(r.user);
+            l.lock();
+            try {
+                if(r.op==TradeJournal.REGISTER) {
+                    User u = users.register(r.user, r.arg, r.qty);
+                    if(u != null) users.touched(u, r.seq);
+                    return;
+                }
+                User u = users.get(r.user);
+                if(u == null || r.seq <= u.seq) return;
+                // UNDO/REDO carry the entries moved in qty; older journals wrote 0 for one.
+                if(r.op==TradeJournal.UNDO) u.undoEntries(Math.max(1, r.qty));
+                else if(r.op==TradeJournal.REDO) u.redoEntries(Math.max(1, r.qty));
+                else if(r.op==TradeJournal.BASKET) u.applyBasket(r.data != null ? TradeJournal.rows(r.data) : TradeJournal.legs(r.arg, r.millis));
+                else if(r.op==TradeJournal.BATCH) u.applyBatch(TradeJournal.rows(r.data));
+                else if(r.op==TradeJournal.COSTING) u.costing(CostBook.method(r.arg));
+                else {
+                    Transaction.Type type = r.op==TradeJournal.BUY ? Transaction.Type.BUY : Transaction.Type.SELL;
+                    ZonedDateTime date = Instant.ofEpochMilli(r.millis).atZone(Transaction.PAK_ZONE);
+                    u.apply(new Transaction(type, r.arg, r.qty, r.price, date));
+                }
+                users.touched(u, r.seq);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Skipping journal record " + r.seq + " for " + r.user + ": " + e);
+                e.printStackTrace();
+            }
+            finally { l.unlock(); }
+        }
+        // One-time import of an older snapshot, which is then kept as *.migrated:
+        private void retire(File old) {
+            if (!old.renameTo(new File(old.getPath() + ".migrated")))
+                System.err.println("Could not rename " + old + " after migration");
+        }
+        @SuppressWarnings("unchecked")
+        private void migrateLegacy(File legacy) throws IOException {
+            HashMap<String, User> old;
+            long seq;
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(legacy)))) {
+                old = (HashMap<String, User>) ois.readObject();
+                try { seq = ois.readLong(); } catch (EOFException noSeq) { seq = 0; }
+            } catch (ClassNotFoundException e) { throw new IOException(e); }
+            for (User u : old.values()) users.importUser(u, seq);
+            users.commitImport(seq);
+        }
+    }
+
+    // --server [port]: serves this directory's store over HTTP so several desks share
+    // one book. Requests are form-encoded and answers are plain text, one item per line;
+    // GET /account sends the caller's segment as stored, which RemoteService decodes.
+    // Each exchange runs on its own virtual thread on JVMs that have them (21+), else on
+    // a cached pool. -Dokx.server.port also sets the port (default 8650).
+    // Passwords and session tokens go over plain HTTP, so it listens on loopback only
+    // unless -Dokx.server.bind names another address (0.0.0.0 for every interface).
+    static class PortfolioServer {
+        static final int DEFAULT_PORT = Integer.getInteger("okx.server.port", 8650);
+        static final String BIND = System.getProperty("okx.server.bind", "");
+        // Bodies past this are refused unread; an import chunk of 4096 rows is well under it.
+        static final int MAX_BODY = Integer.getInteger("okx.server.maxbody", 4 << 20);
+        static final String SESSION = "X-Okx-Session";
+        final PortfolioService service;
+        final com.sun.net.httpserver.HttpServer http;
+        private final ConcurrentHashMap<String, String> sessions = new ConcurrentHashMap<>();
+        private final java.security.SecureRandom random = new java.security.SecureRandom();
+        PortfolioServer(PortfolioService service, int port) throws IOException {
+            this.service = service;
+            java.net.InetAddress at = BIND.isEmpty() ? java.net.InetAddress.getLoopbackAddress() : java.net.InetAddress.getByName(BIND);
+            http = com.sun.net.httpserver.HttpServer.create(new java.net.InetSocketAddress(at, port), 1024);
+            http.createContext("/", this::handle);
+            http.setExecutor(perTask("okx-http"));
+        }
+        static void run(String[] args) throws IOException {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+            Metrics.start();
+            PortfolioService service = new PortfolioService(new File("."));
+            service.load();
+            PortfolioServer server = new PortfolioServer(service, port);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> { server.http.stop(0); service.close(); }, "okx-shutdown"));
+            server.http.start();
+            java.net.InetSocketAddress at = server.http.getAddress();
+            System.out.println("Serving portfolio_data on http://" + (BIND.isEmpty() ? "localhost" : BIND) + ":" + at.getPort() + "/ (Ctrl+C to stop)");
+            if(!at.getAddress().isLoopbackAddress())
+                System.out.println("Warning: reachable from the network; passwords and sessions are sent unencrypted.");
+        }
+        // One virtual thread per task where available, found by reflection so the app
+        // still builds and runs on Java 8.
+        static ExecutorService perTask(String name) {
+            try { return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null); }
+            catch (ReflectiveOperationException e) {
+                AtomicInteger n = new AtomicInteger();
+                return Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+
+        private void handle(com.sun.net.httpserver.HttpExchange ex) throws IOException {
+            long t0 = System.nanoTime();
+            try {
+                String path = ex.getRequestURI().getPath();
+                String declared = ex.getRequestHeaders().getFirst("Content-Length");
+                byte[] raw = declared != null && Long.parseLong(declared.trim()) > MAX_BODY ? null : read(ex.getRequestBody(), MAX_BODY);
+                if(raw == null) { reply(ex, 413, "Request too large."); return; }
+                if(path.equals("/import")) { importRows(ex, new String(raw, "UTF-8")); return; }
+                if(path.equals("/basket")) { basket(ex, new String(raw, "UTF-8")); return; }
+                Map<String, String> q = form(new String(raw, "UTF-8"));
+                if(path.equals("/register")) {
+                    boolean ok = service.register(q.get("user"), q.get("password"));
+                    reply(ex, ok ? 200 : 409, ok ? "" : "Username taken.");
+                    return;
+                }
+                if(path.equals("/login")) {
+                    User u = service.login(q.get("user"), q.get("password"));
+                    if(u == null) { reply(ex, 401, "Invalid credentials."); return; }
+                    String token = new java.math.BigInteger(128, random).toString(36);
+                    sessions.put(token, u.username);
+                    reply(ex, 200, token);
+                    return;
+                }
+                String token = ex.getRequestHeaders().getFirst(SESSION), user = token == null ? null : sessions.get(token);
+                if(user == null) { reply(ex, 401, "Sign in first."); return; }
+                switch(path) {
+                    case "/logout":
+                        sessions.remove(token);
+                        if(!sessions.containsValue(user)) service.logout(service.withUser(user, u -> u));
+                        reply(ex, 200, "");
+                        break;
+                    case "/account": {
+                        User.Snapshot snap = service.withUser(user, User::snapshot);
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        DataOutputStream out = new DataOutputStream(bytes);
+                        UserStore.encodeSegment(snap, out);
+                        out.flush();
+                        reply(ex, 200, bytes.toByteArray());
+                        break;
+                    }
+                    case "/trade": {
+                        Transaction.Type type = Transaction.Type.valueOf(q.get("type"));
+                        int qty = Integer.parseInt(q.get("qty"));
+                        double price = Double.parseDouble(q.get("price"));
+                        int[] sizes = new int[2];
+                        PortfolioService.Result r = counted(user, sizes, () -> service.trade(user, type, q.get("ticker"), qty, price));
+                        if(r.error != null) reply(ex, 409, r.error);
+                        else reply(ex, 200, r.tx.millis() + " " + sizes[0] + " " + sizes[1]);
+                        break;
+                    }
+                    case "/undo": case "/redo": {
+                        // steps counts undo steps; from (undo only) is the first history entry to undo.
+                        String from = q.get("from");
+                        int steps = from != null ? Integer.parseInt(from) : Integer.parseInt(q.get("steps")), sizes[] = new int[2];
+                        int done = counted(user, sizes, () -> from != null ? service.undoFrom(user, steps)
+                            : path.equals("/undo") ? service.undo(user, steps) : service.redo(user, steps)).size();
+                        reply(ex, 200, done + " " + sizes[0] + " " + sizes[1]);
+                        break;
+                    }
+                    case "/aggregate": {
+                        StringBuilder sb = new StringBuilder();
+                        for(Aggregate.Position p : service.aggregate(q.get("group"))) sb.append(p.ticker).append(' ').append(p.shares).append(' ').append(p.accounts).append(' ').append(p.price).append('\n');
+                        reply(ex, 200, sb.toString());
+                        break;
+                    }
+                    case "/groups":
+                        reply(ex, 200, String.join("\n", service.groups()));
+                        break;
+                    case "/costing":
+                        service.costing(user, CostBook.method(q.get("method")));
+                        reply(ex, 200, "");
+                        break;
+                    case "/holdings": {
+                        StringBuilder sb = new StringBuilder();
+                        for(Map.Entry<String, Integer> e : service.holdings(user).entrySet()) sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+                        reply(ex, 200, sb.toString());
+                        break;
+                    }
+                    default: reply(ex, 404, "No such call.");
+                }
+            } catch (RuntimeException e) {
+                reply(ex, 400, "Bad request: " + e);
+            } finally { ex.close(); Metrics.HTTP.since(t0); }
+        }
+        // Body is one side,ticker,quantity,price,millis row per line; the answer has one line
+        // per row, empty where it was applied, then the history sizes around the import.
+        private void importRows(com.sun.net.httpserver.HttpExchange ex, String body) throws IOException {
+            String token = ex.getRequestHeaders().getFirst(SESSION), user = token == null ? null : sessions.get(token);
+            if(user == null) { reply(ex, 401, "Sign in first."); return; }
+            ArrayList<Transaction> rows = new ArrayList<>();
+            for(String line : body.split("\n")) if(!line.isEmpty()) rows.add(row(line));
+            StringBuilder sb = new StringBuilder();
+            int[] sizes = new int[2];
+            for(String reason : counted(user, sizes, () -> service.applyBatch(user, rows))) sb.append(reason == null ? "" : reason).append('\n');
+            reply(ex, 200, sb.append(sizes[0]).append(' ').append(sizes[1]).toString());
+        }
+        // Body is import rows (the time is ignored); the answer is the basket's time and the
+        // history sizes around it, or why it was refused.
+        private void basket(com.sun.net.httpserver.HttpExchange ex, String body) throws IOException {
+            String token = ex.getRequestHeaders().getFirst(SESSION), user = token == null ? null : sessions.get(token);
+            if(user == null) { reply(ex, 401, "Sign in first."); return; }
+            ArrayList<Transaction> legs = new ArrayList<>();
+            for(String line : body.split("\n")) if(!line.isEmpty()) legs.add(row(line));
+            int[] sizes = new int[2];
+            PortfolioService.Result r = counted(user, sizes, () -> service.basket(user, legs));
+            if(r.error != null) reply(ex, 409, r.error);
+            else reply(ex, 200, r.tx.millis() + " " + sizes[0] + " " + sizes[1]);
+        }
+        static Transaction row(String line) {
+            String[] f = line.split(",");
+            return new Transaction(Transaction.Type.valueOf(f[0]), f[1], Integer.parseInt(f[2]), Double.parseDouble(f[3]),
+                Instant.ofEpochMilli(Long.parseLong(f[4])).atZone(Transaction.PAK_ZONE));
+        }
+        // Runs op with the account locked (the stripe is reentrant) and records the history
+        // size before and after, so a client can tell whether its copy was current.
+        private <R> R counted(String user, int[] sizes, java.util.function.Supplier<R> op) {
+            return service.withUser(user, u -> {
+                sizes[0] = u.history.size();
+                R r = op.get();
+                sizes[1] = u.history.size();
+                return r;
+            });
+        }
+        static Map<String, String> form(String body) throws UnsupportedEncodingException {
+            HashMap<String, String> m = new HashMap<>();
+            for(String kv : body.split("&")) {
+                int eq = kv.indexOf('=');
+                if(eq > 0) m.put(java.net.URLDecoder.decode(kv.substring(0, eq), "UTF-8"), java.net.URLDecoder.decode(kv.substring(eq + 1), "UTF-8"));
+            }
+            return m;
+        }
+        static byte[] read(InputStream in) throws IOException { return read(in, Integer.MAX_VALUE); }
+        // Null as soon as more than max bytes arrive.
+        static byte[] read(InputStream in, int max) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            for(int n; (n = in.read(buf)) > 0; ) {
+                if(out.size() + n > max) return null;
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+        private static void reply(com.sun.net.httpserver.HttpExchange ex, int code, String text) throws IOException {
+            ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            reply(ex, code, text.getBytes("UTF-8"));
+        }
+        private static void reply(com.sun.net.httpserver.HttpExchange ex, int code, byte[] body) throws IOException {
+            ex.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+            if(body.length > 0) ex.getResponseBody().write(body);
+        }
+    }
+
+    // The app's service when started with --connect host:port. Changes go to the server;
+    // the signed-in account is mirrored from its segment and every confirmed change is
+    // applied to the mirror as well, so the panels read it as they read a local account.
+    // Each answer carries the server's history size before and after the change: if the
+    // mirror was behind (another desk traded on the same account) it is fetched again
+    // instead, and it already includes the change.
+    static class RemoteService extends PortfolioService {
+        static class Reply {
+            final int code; final byte[] body;
+            Reply(int code, byte[] body) { this.code = code; this.body = body; }
+            String text() { try { return new String(body, "UTF-8"); } catch (UnsupportedEncodingException e) { throw new IllegalStateException(e); } }
+        }
+        private final String base;
+        private final ConcurrentHashMap<String, User> mirrors = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, String> sessions = new ConcurrentHashMap<>();
+        RemoteService(String hostPort) {
+            super(new File("."));
+            base = "http://" + hostPort;
+        }
+        // Nothing is read locally.
+        void load() { StartupTimer.mark("data loaded"); }
+        boolean isLoaded() { return true; }
+        boolean isIndexed() { return true; }
+        void checkpoint() {}
+        void saveSoon() {}
+        void close() { for(String user : new ArrayList<>(sessions.keySet())) logout(mirrors.get(user)); }
+
+        User login(String username, String password) throws IOException {
+            Reply r = call(base, "/login", null, form("user", username, "password", password));
+            if(r.code == 401) return null;
+            if(r.code != 200) throw new IOException(r.text());
+            sessions.put(username, r.text());
+            User u = fetch(username, password);
+            mirrors.put(username, u);
+            return u;
+        }
+        void logout(User u) {
+            if(u == null) return;
+            mirrors.remove(u.username);
+            String token = sessions.remove(u.username);
+            try { if(token != null) call(base, "/logout", token, ""); }
+            catch (IOException e) { e.printStackTrace(); }
+        }
+        boolean register(String username, String password) {
+            try { return call(base, "/register", null, form("user", username, "password", password)).code == 200; }
+            catch (IOException e) { e.printStackTrace(); return false; }
+        }
+        Result trade(String username, Transaction.Type type, String ticker, int qty, double price) {
+            long t0 = System.nanoTime();
+            try {
+                Reply r = call(base, "/trade", sessions.get(username), form("type", type.name(), "ticker", ticker, "qty", String.valueOf(qty), "price", String.valueOf(price)));
+                if(r.code != 200) return new Result(null, r.text());
+                String[] f = r.text().split(" ");
+                Transaction tx = new Transaction(type, ticker, qty, price, Instant.ofEpochMilli(Long.parseLong(f[0])).atZone(Transaction.PAK_ZONE));
+                mirror(username, Integer.parseInt(f[1]), Integer.parseInt(f[2]), u -> { u.apply(tx); return u; });
+                return new Result(tx, null);
+            } catch (IOException e) { e.printStackTrace(); return new Result(null, "Server unavailable."); }
+            finally { Metrics.TRADE.since(t0); }
+        }
+        java.util.List<Transaction> undo(String username, int steps) { return step(username, "/undo", "steps", steps); }
+        java.util.List<Transaction> undoFrom(String username, int from) { return step(username, "/undo", "from", from); }
+        java.util.List<Transaction> redo(String username, int steps) { return step(username, "/redo", "steps", steps); }
+        private java.util.List<Transaction> step(String username, String path, String key, int steps) {
+            long t0 = System.nanoTime();
+            try {
+                Reply r = call(base, path, sessions.get(username), form(key, String.valueOf(steps)));
+                if(r.code != 200) return Collections.emptyList();
+                String[] f = r.text().split(" ");
+                int done = Integer.parseInt(f[0]), after = Integer.parseInt(f[2]);
+                java.util.List<Transaction> moved = mirror(username, Integer.parseInt(f[1]), after, u -> path.equals("/undo") ? u.undoEntries(done) : u.redoEntries(done));
+                if(moved == null) {
+                    // Fetched fresh: the entries moved sit just after the cursor (undo) or before it (redo).
+                    HistoryStore h = mirrors.get(username).history;
+                    moved = new ArrayList<>();
+                    if(path.equals("/undo")) for(int i = after + done - 1; i >= after; i--) moved.add(h.entry(i));
+                    else for(int i = after - done; i < after; i++) moved.add(h.entry(i));
+                }
+                return moved;
+            } catch (IOException e) { e.printStackTrace(); return Collections.emptyList(); }
+            finally { (path.equals("/undo") ? Metrics.UNDO : Metrics.REDO).since(t0); }
+        }
+        Result basket(String username, java.util.List<Transaction> legs) {
+            long t0 = System.nanoTime();
+            StringBuilder body = new StringBuilder();
+            for(Transaction tx : legs) body.append(tx.type).append(',').append(tx.ticker).append(',').append(tx.qty).append(',').append(tx.price).append(',').append(tx.millis()).append('\n');
+            try {
+                Reply r = call(base, "/basket", sessions.get(username), body.toString());
+                if(r.code != 200) return new Result(null, r.text());
+                String[] f = r.text().split(" ");
+                ZonedDateTime date = Instant.ofEpochMilli(Long.parseLong(f[0])).atZone(Transaction.PAK_ZONE);
+                ArrayList<Transaction> stamped = new ArrayList<>(legs.size());
+                for(Transaction tx : legs) stamped.add(new Transaction(tx.type, tx.ticker, tx.qty, tx.price, date));
+                mirror(username, Integer.parseInt(f[1]), Integer.parseInt(f[2]), u -> u.applyBasket(stamped));
+                return new Result(stamped.get(0), null);
+            } catch (IOException e) { e.printStackTrace(); return new Result(null, "Server unavailable."); }
+            finally { Metrics.BASKET.since(t0); }
+        }
+        String[] applyBatch(String username, java.util.List<Transaction> rows) {
+            StringBuilder body = new StringBuilder();
+            for(Transaction tx : rows) body.append(tx.type).append(',').append(tx.ticker).append(',').append(tx.qty).append(',').append(tx.price).append(',').append(tx.millis()).append('\n');
+            try {
+                Reply r = call(base, "/import", sessions.get(username), body.toString());
+                if(r.code != 200) throw new IOException(r.text());
+                String[] lines = r.text().split("\n", -1), reasons = new String[rows.size()], f = lines[rows.size()].split(" ");
+                for(int i = 0; i < reasons.length; i++) reasons[i] = lines[i].isEmpty() ? null : lines[i];
+                mirror(username, Integer.parseInt(f[0]), Integer.parseInt(f[1]), u -> u.applyBatch(rows));
+                return reasons;
+            } catch (IOException e) {
+                e.printStackTrace();
+                String[] reasons = new String[rows.size()];
+                Arrays.fill(reasons, "Server unavailable.");
+                return reasons;
+            }
+        }
+        // The server saves it with the account; the mirror follows once it has.
+        void costing(String username, CostBook.Method method) {
+            try {
+                Reply r = call(base, "/costing", sessions.get(username), form("method", method.name()));
+                if(r.code != 200) throw new IOException(r.text());
+                User u = mirrors.get(username);
+                if(u != null) onEdt(() -> { synchronized(u) { u.costing(method); } });
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+        // The server's totals; asked as whichever account is signed in here.
+        java.util.List<Aggregate.Position> aggregate(String group) {
+            ArrayList<Aggregate.Position> out = new ArrayList<>();
+            try {
+                Reply r = call(base, "/aggregate", anySession(), form("group", group == null ? Aggregate.ALL : group));
+                if(r.code == 200) for(String line : r.text().split("\n")) {
+                    if(line.isEmpty()) continue;
+                    String[] f = line.split(" ");
+                    out.add(new Aggregate.Position(f[0], Long.parseLong(f[1]), Integer.parseInt(f[2]), Double.parseDouble(f[3])));
+                }
+            } catch (IOException e) { e.printStackTrace(); }
+            return out;
+        }
+        java.util.List<String> groups() {
+            try {
+                Reply r = call(base, "/groups", anySession(), "");
+                if(r.code == 200) return Arrays.asList(r.text().split("\n"));
+            } catch (IOException e) { e.printStackTrace(); }
+            return Collections.singletonList(Aggregate.ALL);
+        }
+        private String anySession() {
+            Iterator<String> it = sessions.values().iterator();
+            return it.hasNext() ? it.next() : null;
+        }
+        // Runs f on the local mirror; null unless the account is signed in here.
+        <R> R withUser(String username, java.util.function.Function<User, R> f) {
+            User u = mirrors.get(username);
+            if(u == null) return null;
+            synchronized(u) { return f.apply(u); }
+        }
+        // Applies a change the server confirmed: locally if the mirror was at `before`,
+        // otherwise (or if the result is not at `after`) by fetching the account again, in
+        // which case it returns null.
+        private <R> R mirror(String username, int before, int after, java.util.function.Function<User, R> change) throws IOException {
+            User u = mirrors.get(username);
+            if(u == null) return null;
+            // The panels read the mirror on the EDT, so it only changes there; the
+            // request and any refetch stay on the caller's thread.
+            AtomicReference<R> out = new AtomicReference<>();
+            AtomicBoolean applied = new AtomicBoolean();
+            onEdt(() -> {
+                synchronized(u) {
+                    if(u.history.size() != before) return;
+                    out.set(change.apply(u));
+                    applied.set(u.history.size() == after);
+                }
+            });
+            if(applied.get()) return out.get();
+            // Swapped into the existing mirror, since the panels hold on to it.
+            User fresh = fetch(username, u.password);
+            onEdt(() -> {
+                synchronized(u) {
+                    fresh.costing(u.costs.method);
+                    u.portfolio = fresh.portfolio; u.history = fresh.history; u.costs = fresh.costs;
+                }
+            });
+            return null;
+        }
+        private static void onEdt(Runnable r) throws IOException {
+            if(SwingUtilities.isEventDispatchThread()) { r.run(); return; }
+            try { SwingUtilities.invokeAndWait(r); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new InterruptedIOException("interrupted while updating the mirror"); }
+            catch (java.lang.reflect.InvocationTargetException e) {
+                if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+                if(e.getCause() instanceof Error) throw (Error)e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+        private User fetch(String username, String password) throws IOException {
+            Reply r = call(base, "/account", sessions.get(username), "");
+            if(r.code != 200) throw new IOException(r.text());
+            User u = new User(username, password);
+            UserStore.decodeSegment(u, ByteBuffer.wrap(r.body));
+            return u;
+        }
+
+        static String form(String... kv) throws UnsupportedEncodingException {
+            StringBuilder sb = new StringBuilder();
+            for(int i = 0; i < kv.length; i += 2) {
+                if(i > 0) sb.append('&');
+                sb.append(java.net.URLEncoder.encode(kv[i], "UTF-8")).append('=').append(java.net.URLEncoder.encode(kv[i + 1], "UTF-8"));
+            }
+            return sb.toString();
+        }
+        // One POST; the connection goes back to the keep-alive pool once the body is read.
+        static Reply call(String base, String path, String session, String body) throws IOException {
+            java.net.HttpURLConnection c = (java.net.HttpURLConnection)new java.net.URL(base + path).openConnection();
+            c.setRequestMethod("POST");
+            c.setDoOutput(true);
+            c.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            if(session != null) c.setRequestProperty(PortfolioServer.SESSION, session);
+            try (OutputStream out = c.getOutputStream()) { out.write(body.getBytes("UTF-8")); }
+            int code = c.getResponseCode();
+            InputStream in = code >= 400 ? c.getErrorStream() : c.getInputStream();
+            byte[] reply = new byte[0];
+            if(in != null) try (InputStream i = in) { reply = PortfolioServer.read(i); }
+            return new Reply(code, reply);
+        }
+    }
+
+    // --loadgen [host:port] [clients] [seconds]: many simulated desks, each registering
+    // and signing in its own account and then trading as fast as the server answers.
+    // Prints throughput and latency percentiles over every trade call.
+    static class LoadGen {
+        static void run(String[] args) throws Exception {
+            String base = "http://" + (args.length > 1 ? args[1] : "localhost:" + PortfolioServer.DEFAULT_PORT);
+            int clients = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+            int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+            if(System.getProperty("http.maxConnections") == null) System.setProperty("http.maxConnections", String.valueOf(clients));
+            ExecutorService pool = PortfolioServer.perTask("okx-loadgen");
+            long run = System.currentTimeMillis() % 100_000;
+            CountDownLatch ready = new CountDownLatch(clients), go = new CountDownLatch(1);
+            AtomicLong errors = new AtomicLong(), rejected = new AtomicLong();
+            java.util.List<Future<long[]>> results = new ArrayList<>();
+            long[] window = new long[2];
+            for(int c = 0; c < clients; c++) {
+                String user = "load" + run + "-" + c;
+                results.add(pool.submit(() -> {
+                    String session;
+                    try {
+                        RemoteService.call(base, "/register", null, RemoteService.form("user", user, "password", "pw"));
+                        session = RemoteService.call(base, "/login", null, RemoteService.form("user", user, "password", "pw")).text();
+                    } finally { ready.countDown(); }
+                    go.await();
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    long[] lat = new long[1024];
+                    int n = 0;
+                    int[] held = new int[StressCheck.TICKERS.length];
+                    while(System.nanoTime() < window[1]) {
+                        int t = rnd.nextInt(held.length);
+                        boolean sell = held[t] > 0 && rnd.nextInt(3) == 0;
+                        int qty = 1 + rnd.nextInt(sell ? held[t] : 10);
+                        String body = RemoteService.form("type", sell ? "SELL" : "BUY", "ticker", StressCheck.TICKERS[t],
+                            "qty", String.valueOf(qty), "price", String.valueOf(10 + rnd.nextInt(500)));
+                        long t0 = System.nanoTime();
+                        try {
+                            RemoteService.Reply r = RemoteService.call(base, "/trade", session, body);
+                            if(r.code == 200) held[t] += sell ? -qty : qty;
+                            else if(r.code == 409) rejected.incrementAndGet();
+                            else errors.incrementAndGet();
+                        } catch (IOException e) { errors.incrementAndGet(); continue; }
+                        if(n == lat.length) lat = Arrays.copyOf(lat, n * 2);
+                        lat[n++] = System.nanoTime() - t0;
+                    }
+                    return Arrays.copyOf(lat, n);
+                }));
+            }
+            ready.await();
+            System.out.printf("%,d clients signed in; trading for %ds%n", clients, seconds);
+            window[0] = System.nanoTime(); window[1] = window[0] + seconds * 1_000_000_000L;
+            go.countDown();
+            long[] all = new long[0];
+            for(Future<long[]> f : results) {
+                try {
+                    long[] l = f.get();
+                    int at = all.length;
+                    all = Arrays.copyOf(all, at + l.length);
+                    System.arraycopy(l, 0, all, at, l.length);
+                } catch (ExecutionException e) { errors.incrementAndGet(); }
+            }
+            double secs = (System.nanoTime() - window[0]) / 1e9;
+            pool.shutdown();
+            Arrays.sort(all);
+            System.out.printf("%,d trades in %.1fs: %,.0f trades/s (%,d rejected, %,d errors)%n", all.length, secs, all.length / secs, rejected.get(), errors.get());
+            if(all.length > 0) System.out.printf("latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                pct(all, 0.50), pct(all, 0.90), pct(all, 0.99), pct(all, 0.999), all[all.length - 1] / 1e6);
+        }
+        private static double pct(long[] sorted, double p) { return sorted[Math.min(sorted.length - 1, (int)(p * sorted.length))] / 1e6; }
+    }
+
+    // --stress [threads] [ops per thread]: drives a PortfolioService in a scratch
+    // directory from many threads with a small user cache, then checks each holding
+    // against the trades that succeeded, after a simulated crash and after a clean reload.
+    static class StressCheck {
+        static final String[] TICKERS = {"AAPL", "MSFT", "NVDA", "TSLA", "AMZN", "META"};
+        static void run(String[] args) throws Exception {
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+            int ops = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+            if(System.getProperty("okx.cache.users") == null) System.setProperty("okx.cache.users", "12");
+            if(System.getProperty("okx.costs.undo") == null) System.setProperty("okx.costs.undo", "8"); // undo past it too
+            if(System.getProperty("okx.symbols") == null) System.setProperty("okx.symbols", "");
+            File dir = Files.createTempDirectory("okx-stress").toFile();
+            String[] names = new String[16];
+            PortfolioService s = new PortfolioService(dir);
+            s.load();
+            for(int i = 0; i < names.length; i++) { names[i] = "user" + i; s.register(names[i], "pw"); }
+
+            ConcurrentHashMap<String, LongAdder> expected = new ConcurrentHashMap<>();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            java.util.List<Future<?>> running = new ArrayList<>();
+            long start = System.nanoTime();
+            for(int t = 0; t < threads; t++) running.add(pool.submit(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                for(int i = 0; i < ops; i++) {
+                    String u = names[rnd.nextInt(names.length)];
+                    int roll = rnd.nextInt(20), sign = 1;
+                    java.util.List<Transaction> moved;
+                    if(roll < 2) { moved = s.undo(u, 1 + rnd.nextInt(3)); sign = -1; }
+                    else if(roll < 3) moved = s.redo(u, 1);
+                    else if(roll < 4) {
+                        ArrayList<Transaction> legs = new ArrayList<>();
+                        for(int k = 1 + rnd.nextInt(4); k > 0; k--)
+                            legs.add(new Transaction(rnd.nextBoolean() ? Transaction.Type.BUY : Transaction.Type.SELL, TICKERS[rnd.nextInt(TICKERS.length)], 1 + rnd.nextInt(50), 10 + rnd.nextInt(500)));
+                        moved = s.basket(u, legs).error == null ? legs : Collections.<Transaction>emptyList();
+                    }
+                    else if(roll < 5) {
+                        ArrayList<Transaction> rows = new ArrayList<>();
+                        for(int k = 1 + rnd.nextInt(20); k > 0; k--)
+                            rows.add(new Transaction(rnd.nextInt(3) == 0 ? Transaction.Type.SELL : Transaction.Type.BUY, TICKERS[rnd.nextInt(TICKERS.length)], 1 + rnd.nextInt(50), 10 + rnd.nextInt(500)));
+                        String[] reasons = s.applyBatch(u, rows);
+                        moved = new ArrayList<>();
+                        for(int k = 0; reasons != null && k < reasons.length; k++) if(reasons[k] == null) moved.add(rows.get(k));
+                    }
+                    else {
+                        Transaction.Type type = roll < 13 ? Transaction.Type.BUY : Transaction.Type.SELL;
+                        PortfolioService.Result r = s.trade(u, type, TICKERS[rnd.nextInt(TICKERS.length)], 1 + rnd.nextInt(50), 10 + rnd.nextInt(500));
+                        moved = r.tx == null ? Collections.<Transaction>emptyList() : Collections.singletonList(r.tx);
+                    }
+                    for(Transaction tx : moved) expected.computeIfAbsent(u + " " + tx.ticker, k -> new LongAdder()).add(sign * tx.signedQty());
+                }
+            }));
+            for(Future<?> f : running) f.get();
+            pool.shutdown();
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%,d operations on %d threads in %.2fs (%,.0f ops/s)%n", (long)threads * ops, threads, secs, threads * ops / secs);
+
+            java.util.List<String> failures = new ArrayList<>();
+            TradeImporter.Chunk typo = TradeImporter.basket(new String[]{"BYU,AAPL,10,1", "SELL,MSFT,5,100"});
+            if(typo.errors.isEmpty()) failures.add("basket with an unknown side on line 1 parsed as " + typo.rows);
+            Map<String, String> live = verify("live", s, names, expected, failures);
+            s.stopAutosave();
+            s.journal.close(); // crash: unflushed users are lost, the journal has to bring them back
+            PortfolioService crashed = new PortfolioService(dir);
+            crashed.load();
+            compare("after crash", live, verify("after crash", crashed, names, expected, failures), failures);
+            crashed.close();
+            PortfolioService reloaded = new PortfolioService(dir);
+            reloaded.load();
+            compare("after reload", live, verify("after reload", reloaded, names, expected, failures), failures);
+            reloaded.close();
+            delete(dir);
+
+            if(failures.isEmpty()) System.out.println("OK: holdings, history and firm totals consistent");
+            else { for(String f : failures) System.out.println("FAILED: " + f); System.exit(1); }
+        }
+        // Holdings must match both the net of successful calls and the applied history, and
+        // the cost book kept up through trades and undos must equal one rebuilt from scratch.
+        private static Map<String, String> verify(String phase, PortfolioService s, String[] names,
+                                                  Map<String, LongAdder> expected, java.util.List<String> failures) {
+            Map<String, String> state = new TreeMap<>();
+            for(String name : names) {
+                String err = s.withUser(name, u -> {
+                    HashMap<String, Integer> net = new HashMap<>();
+                    for(int i = 0; i < u.history.size(); i++) net.merge(Symbols.name(u.history.symbol(i)), u.history.signedQty(i), Integer::sum);
+                    for(String t : TICKERS) {
+                        int held = u.held(t);
+                        LongAdder want = expected.get(name + " " + t);
+                        if(held < 0 || held != net.getOrDefault(t, 0) || held != (want == null ? 0 : want.sum()))
+                            return name + " " + t + ": holds " + held + ", history " + net.getOrDefault(t, 0) + ", expected " + want;
+                    }
+                    CostBook fresh = new CostBook(u.costs.method).rebuild(u.history);
+                    for(String t : TICKERS) {
+                        int sym = Symbols.id(t);
+                        if(u.costs.open(sym) != u.held(t) || u.costs.cost(sym) != fresh.cost(sym) || u.costs.realized(sym) != fresh.realized(sym))
+                            return name + " " + t + ": book has " + u.costs.open(sym) + " @ " + u.costs.cost(sym) + " realized " + u.costs.realized(sym)
+                                + ", rebuilt " + fresh.open(sym) + " @ " + fresh.cost(sym) + " realized " + fresh.realized(sym);
+                    }
+                    state.put(name, u.portfolio.size() + " holdings, " + u.history.size() + "/" + u.history.length() + " history, realized " + u.costs.realized());
+                    return null;
+                });
+                if(err != null) failures.add(phase + ": " + err);
+            }
+            // The aggregate, kept up by every move (or rebuilt from segments on load), must
+            // equal the sum over the accounts.
+            Map<String, long[]> sums = new HashMap<>();
+            for(String name : names) s.withUser(name, u -> {
+                for(String t : TICKERS) if(u.held(t) > 0) { long[] a = sums.computeIfAbsent(t, k -> new long[2]); a[0] += u.held(t); a[1]++; }
+                return u;
+            });
+            Map<String, Aggregate.Position> agg = new HashMap<>();
+            for(Aggregate.Position p : s.aggregate(null)) agg.put(p.ticker, p);
+            for(String t : TICKERS) {
+                long[] want = sums.getOrDefault(t, new long[2]);
+                Aggregate.Position p = agg.get(t);
+                if(p == null ? want[0] != 0 : p.shares != want[0] || p.accounts != want[1])
+                    failures.add(phase + ": aggregate " + t + " has " + (p == null ? "nothing" : p.shares + " in " + p.accounts + " accounts") + ", accounts sum to " + want[0] + " in " + want[1]);
+            }
+            return state;
+        }
+        private static void compare(String phase, Map<String, String> live, Map<String, String> now, java.util.List<String> failures) {
+            for(Map.Entry<String, String> e : live.entrySet())
+                if(!e.getValue().equals(now.get(e.getKey())))
+                    failures.add(phase + ": " + e.getKey() + " was " + e.getValue() + ", now " + now.get(e.getKey()));
+        }
+        private static void delete(File f) {
+            File[] kids = f.listFiles();
+            if(kids != null) for(File k : kids) delete(k);
+            f.delete();
+        }
+    }
+
+    // --bench [results.json]: timing harness for the hot paths with no dependencies.
+    // Each case is warmed up and then timed over several iterations with its setup kept
+    // out of the clock. Results print as a table and are written as JSON (default
+    // bench-results.json) so runs from different builds can be diffed.
+    // -Dokx.bench.sizes=1000,100000,1000000 picks the persistence data set sizes.
+    static class Bench {
+        static final int WARMUP = 3, ITERATIONS = 5;
+        static final String[] SYMBOLS = new String[200];
+        static { for(int i = 0; i < SYMBOLS.length; i++) SYMBOLS[i] = "SYM" + i; }
+        interface Body { long run() throws Exception; }       // timed; returns operations done
+        interface Setup { Body prepare() throws Exception; }  // untimed, once per iteration
+        static class Score {
+            final String name, param; final long ops; final double mean, error, min;
+            Score(String name, String param, long ops, double[] ns) {
+                this.name = name; this.param = param; this.ops = ops;
+                double sum = 0, lo = Double.MAX_VALUE;
+                for(double v : ns) { sum += v; lo = Math.min(lo, v); }
+                mean = sum / ns.length; min = lo;
+                double var = 0;
+                for(double v : ns) var += (v - mean) * (v - mean);
+                error = ns.length > 1 ? Math.sqrt(var / (ns.length - 1)) : 0;
+            }
+        }
+        static volatile long sink;
+        private final ArrayList<Score> scores = new ArrayList<>();
+        private final File scratch;
+        // Set by scenario(): measure() keeps the setups here instead of timing them.
+        private Map<String, Setup> collected;
+        Bench(File scratch) { this.scratch = scratch; }
+
+        static void run(String[] args) throws Exception {
+            File out = new File(args.length > 1 ? args[1] : "bench-results.json");
+            ArrayList<Integer> sizes = new ArrayList<>();
+            for(String s : System.getProperty("okx.bench.sizes", "1000,100000,1000000").split(",")) sizes.add(Integer.parseInt(s.trim()));
+            if(System.getProperty("okx.symbols") == null) System.setProperty("okx.symbols", "");
+            File dir = Files.createTempDirectory("okx-bench").toFile();
+            Bench b = new Bench(dir);
+            try {
+                b.trades();
+                b.formatting();
+                b.symbols();
+                b.risk();
+                b.firm();
+                for(int n : sizes) { b.persistence(n); b.models(n); }
+            } finally { StressCheck.delete(dir); }
+            b.write(out);
+            System.out.println("Results written to " + out);
+        }
+        // One scenario, named as in the results ("trade.apply", "saveData/1000"), set up
+        // but not timed, for the JMH harness in jmh/: each call prepares one run and returns
+        // its body, which returns the operations it did. The harness forks, warms up and times.
+        static java.util.concurrent.Callable<java.util.concurrent.Callable<Long>> scenario(String key, File scratch) throws Exception {
+            if(System.getProperty("okx.symbols") == null) System.setProperty("okx.symbols", "");
+            int slash = key.indexOf('/');
+            String name = slash < 0 ? key : key.substring(0, slash);
+            int n = slash < 0 ? 0 : Integer.parseInt(key.substring(slash + 1));
+            Bench b = new Bench(scratch);
+            b.collected = new HashMap<>();
+            if(name.startsWith("trade.")) b.trades();
+            else if(name.startsWith("transaction.")) b.formatting();
+            else if(name.startsWith("symbols.")) b.symbols();
+            else if(name.startsWith("risk.")) b.risk();
+            else if(name.startsWith("aggregate.")) b.firm();
+            else if(name.equals("saveData") || name.equals("loadData")) b.persistence(n);
+            else b.models(n);
+            Setup setup = b.collected.get(key);
+            if(setup == null) throw new IllegalArgumentException("No benchmark " + key);
+            return () -> { Body body = setup.prepare(); return body::run; };
+        }
+
+        // performTrade without the form: check and apply in memory, then the full
+        // service path including the journal append.
+        void trades() throws Exception {
+            measure("trade.apply", "", () -> {
+                User u = new User("bench", "pw");
+                return () -> {
+                    for(int i = 0; i < 100_000; i++) {
+                        Transaction.Type type = (i & 3) == 3 ? Transaction.Type.SELL : Transaction.Type.BUY;
+                        String t = SYMBOLS[i % SYMBOLS.length];
+                        if(u.check(type, t, 1, 100) == null) u.apply(new Transaction(type, t, 1, 100));
+                    }
+                    return 100_000;
+                };
+            });
+            measure("trade.service", "", () -> {
+                File d = Files.createTempDirectory(scratch.toPath(), "trade").toFile();
+                PortfolioService s = new PortfolioService(d);
+                s.load();
+                s.register("bench", "pw");
+                return () -> {
+                    for(int i = 0; i < 20_000; i++)
+                        sink += s.trade("bench", (i & 3) == 3 ? Transaction.Type.SELL : Transaction.Type.BUY, SYMBOLS[i % SYMBOLS.length], 1, 100).tx == null ? 0 : 1;
+                    s.stopAutosave();
+                    s.journal.close();
+                    return 20_000;
+                };
+            });
+        }
+        // A shuffled 150k-entry master: mapping and indexing it, then keystroke lookups.
+        void symbols() throws Exception {
+            File f = new File(scratch, "symbols.txt");
+            ArrayList<String> lines = new ArrayList<>();
+            for(int i = 0; i < 150_000; i++) lines.add(Integer.toString(i * 7919 % 150_000 + 46656, 36).toUpperCase() + ",Company " + i);
+            Files.write(f.toPath(), lines);
+            measure("symbols.load", "150000", () -> () -> { sink += SymbolMaster.load(f.getPath()).size(); return 1; });
+            SymbolMaster m = SymbolMaster.load(f.getPath());
+            String[] prefixes = {"A", "B2", "C3D", "ZZ", "1A2", "9"};
+            int[] hits = new int[8];
+            measure("symbols.complete", "150000", () -> () -> {
+                for(int i = 0; i < 1_000_000; i++) sink += m.complete(prefixes[i % prefixes.length], hits);
+                return 1_000_000;
+            });
+        }
+        // 300 positions on ten years of daily closes, read from disk each time.
+        void risk() throws Exception {
+            File d = new File(scratch, "prices");
+            d.mkdirs();
+            Random rnd = new Random(11);
+            TreeMap<String, Integer> held = new TreeMap<>();
+            LocalDate first = LocalDate.of(2015, 1, 1);
+            for(int i = 0; i < 300; i++) {
+                StringBuilder b = new StringBuilder("Date,Close\n");
+                double p = 100;
+                for(int k = 0; k <= 2520; k++) { p *= 1 + 0.02 * rnd.nextGaussian() / 1.5; b.append(first.plusDays(k)).append(',').append((float)p).append('\n'); }
+                Files.write(Risk.file(d, "R" + i).toPath(), b.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                held.put("R" + i, 1 + rnd.nextInt(1000));
+            }
+            measure("risk.report", "300", () -> () -> { sink += Risk.compute(d, held).days; return 1; });
+        }
+        // 2000 saved accounts of 50 trades each: counting them into the aggregate as load
+        // does, then firm-wide queries.
+        void firm() throws Exception {
+            File d = Files.createTempDirectory(scratch.toPath(), "firm").toFile();
+            PortfolioService s = new PortfolioService(d);
+            s.load();
+            java.util.List<Transaction> rows = synthetic(50);
+            for(int i = 0; i < 2000; i++) { s.register("desk" + i, "pw"); s.applyBatch("desk" + i, rows.subList(0, 10 + i % 40)); }
+            s.close();
+            measure("aggregate.index", "2000", () -> {
+                PortfolioService fresh = new PortfolioService(d);
+                return () -> { fresh.users.open(); fresh.users.indexHoldings(); return 2000; };
+            });
+            measure("aggregate.positions", "2000", () -> () -> {
+                for(int i = 0; i < 1000; i++) sink += s.users.aggregate.positions(null).size();
+                return 1000;
+            });
+        }
+        void formatting() throws Exception {
+            java.util.List<Transaction> rows = synthetic(100_000);
+            measure("transaction.toString", "", () -> () -> {
+                long n = 0;
+                for(Transaction tx : rows) n += tx.toString().length();
+                sink += n;
+                return rows.size();
+            });
+        }
+        // saveData is a checkpoint of one dirty account holding n transactions; loadData
+        // is a cold open of the store plus the sign-in that decodes the account.
+        void persistence(int n) throws Exception {
+            File d = Files.createTempDirectory(scratch.toPath(), "store" + n).toFile();
+            PortfolioService s = new PortfolioService(d);
+            s.load();
+            s.register("bench", "pw");
+            s.applyBatch("bench", synthetic(n));
+            String param = String.valueOf(n);
+            measure("saveData", param, () -> {
+                s.withUser("bench", u -> u.dirty = true);
+                return () -> { s.checkpoint(); return n; };
+            });
+            if(collected == null) s.close();
+            else { s.stopAutosave(); s.checkpoint(); } // saveData still runs against s later
+            measure("loadData", param, () -> () -> {
+                PortfolioService fresh = new PortfolioService(d);
+                fresh.load();
+                User u = fresh.login("bench", "pw");
+                sink += u.history.size();
+                fresh.journal.close();
+                return n;
+            });
+        }
+        // What PortfolioPanel and HistoryPanel do on refresh: point a new model at the
+        // user's data and format the rows a list would paint first, plus an as-of query.
+        void models(int n) throws Exception {
+            User u = new User("bench", "pw");
+            u.applyBatch(synthetic(n));
+            String param = String.valueOf(n);
+            measure("model.history", param, () -> () -> {
+                for(int i = 0; i < 100; i++) { TransactionListModel m = new TransactionListModel(); m.setRows(u.history); visible(m); }
+                return 100;
+            });
+            measure("model.historyFiltered", param, () -> () -> {
+                for(int i = 0; i < 100; i++) {
+                    TransactionListModel m = new TransactionListModel();
+                    m.setRows(u.history.query(SYMBOLS[i % SYMBOLS.length], Long.MIN_VALUE, Long.MAX_VALUE));
+                    visible(m);
+                }
+                return 100;
+            });
+            measure("model.portfolio", param, () -> () -> {
+                for(int i = 0; i < 100; i++) { HoldingListModel m = new HoldingListModel(); m.setUser(u); visible(m); }
+                return 100;
+            });
+            // Holdings as of a random minute in the history; checkpoints are built in warmup.
+            long t0 = u.history.millis(0), span = u.history.millis(n - 1) - t0;
+            measure("history.asOf", param, () -> {
+                Random rnd = new Random(7);
+                return () -> {
+                    for(int i = 0; i < 100; i++) sink += u.history.holdingsAt(t0 + (long)(rnd.nextDouble() * span)).size();
+                    return 100;
+                };
+            });
+        }
+        private static void visible(ListModel<String> m) {
+            long n = 0;
+            for(int i = 0; i < Math.min(40, m.getSize()); i++) n += m.getElementAt(i).length();
+            sink += n;
+        }
+
+        // n trades across SYMBOLS, a minute apart, every sell covered by earlier buys.
+        static java.util.List<Transaction> synthetic(int n) {
+            Random rnd = new Random(42);
+            int[] held = new int[SYMBOLS.length];
+            ArrayList<Transaction> rows = new ArrayList<>(n);
+            ZonedDateTime t0 = ZonedDateTime.of(2020, 1, 1, 9, 0, 0, 0, Transaction.PAK_ZONE);
+            for(int i = 0; i < n; i++) {
+                int s = rnd.nextInt(SYMBOLS.length), q = 1 + rnd.nextInt(100);
+                Transaction.Type type = held[s] >= q && rnd.nextInt(3) == 0 ? Transaction.Type.SELL : Transaction.Type.BUY;
+                held[s] += type == Transaction.Type.BUY ? q : -q;
+                rows.add(new Transaction(type, SYMBOLS[s], q, 10 + rnd.nextInt(50_000) / 100.0, t0.plusMinutes(i)));
+            }
+            return rows;
+        }
+
+        void measure(String name, String param, Setup setup) throws Exception {
+            if(collected != null) { collected.put(param.isEmpty() ? name : name + "/" + param, setup); return; }
+            for(int i = 0; i < WARMUP; i++) sink += setup.prepare().run();
+            double[] ns = new double[ITERATIONS];
+            long ops = 0;
+            for(int i = 0; i < ITERATIONS; i++) {
+                Body body = setup.prepare();
+                long start = System.nanoTime();
+                ops = body.run();
+                ns[i] = (double)(System.nanoTime() - start) / ops;
+            }
+            Score s = new Score(name, param, ops, ns);
+            scores.add(s);
+            System.out.printf("%-24s %10s %14.1f +- %-10.1f ns/op  (min %.1f, %,d ops/iteration)%n", name, param, s.mean, s.error, s.min, ops);
+        }
+        void write(File f) throws IOException {
+            try (PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"))) {
+                w.println("{");
+                w.printf("  \"timestamp\": \"%s\",%n", Instant.now());
+                w.printf("  \"java\": \"%s\",%n", System.getProperty("java.version"));
+                w.printf("  \"os\": \"%s %s\",%n", System.getProperty("os.name"), System.getProperty("os.arch"));
+                w.printf("  \"cpus\": %d,%n", Runtime.getRuntime().availableProcessors());
+                w.printf("  \"maxHeapMb\": %d,%n", Runtime.getRuntime().maxMemory() >> 20);
+                w.printf("  \"warmupIterations\": %d,%n  \"iterations\": %d,%n", WARMUP, ITERATIONS);
+                w.println("  \"results\": [");
+                for(int i = 0; i < scores.size(); i++) {
+                    Score s = scores.get(i);
+                    w.printf(Locale.ROOT, "    {\"benchmark\": \"%s\", \"size\": %s, \"unit\": \"ns/op\", \"score\": %.3f, \"error\": %.3f, \"min\": %.3f, \"opsPerIteration\": %d}%s%n",
+                        s.name, s.param.isEmpty() ? "null" : s.param, s.mean, s.error, s.min, s.ops, i + 1 < scores.size() ? "," : "");
+                }
+                w.println("  ]");
+                w.println("}");
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,59 @@
+package okx.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+// The --bench scenarios under JMH. Each iteration prepares one run untimed and times
+// its body once, as --bench does, but in forked JVMs with JMH's warmup and statistics.
+// Scores are per run; a run's operation count is in the --bench output. Pick scenarios
+// with -p scenario=trade.apply,saveData/100000 (any name --bench prints, /size for sized ones).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dokx.metrics.dump="})
+public class AppBenchmark {
+    @Param({"trade.apply", "trade.service", "transaction.toString",
+            "symbols.load/150000", "symbols.complete/150000", "risk.report/300",
+            "aggregate.index/2000", "aggregate.positions/2000",
+            "saveData/1000", "saveData/100000", "loadData/1000", "loadData/100000",
+            "model.history/100000", "model.historyFiltered/100000", "model.portfolio/100000", "history.asOf/100000"})
+    public String scenario;
+
+    private Path scratch;
+    private Callable<Callable<Long>> setup;
+    private Callable<Long> body;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void trial() throws Exception {
+        scratch = Files.createTempDirectory("okx-jmh");
+        // The app is in the default package, which can't be imported from here.
+        Method m = Class.forName("PortfolioAppOKXAnimated$Bench").getDeclaredMethod("scenario", String.class, File.class);
+        m.setAccessible(true);
+        setup = (Callable<Callable<Long>>)m.invoke(null, scenario, scratch.toFile());
+    }
+
+    @Setup(Level.Iteration)
+    public void prepare() throws Exception { body = setup.call(); }
+
+    @Benchmark
+    public long run() throws Exception { return body.call(); }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(scratch)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}